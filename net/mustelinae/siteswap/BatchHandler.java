@@ -0,0 +1,17 @@
+package net.mustelinae.siteswap;
+
+/**
+ * An alternative to <tt>SiteswapHandler</tt> which receives the generated
+ * siteswaps in batches, so that the cost of a call is shared by many
+ * siteswaps (see <tt>Generator.setBatchHandler</tt>).
+ */
+public interface BatchHandler
+{
+    /**
+     * Handles a batch of siteswaps. The batch is not reused, so it may be
+     * kept after the call returns.
+     * @return <tt>false</tt> to stop the generation
+     */
+    public boolean handle(SiteswapBatch batch);
+
+}
@@ -0,0 +1,96 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A token for stopping a search (see <tt>Generator.setCancellation</tt>)
+ * from another thread, or after a deadline. Once cancelled, it stays
+ * cancelled.
+ *
+ * Searches only check the token every so often (every few thousand steps),
+ * so they stop shortly after it is cancelled, not right away.
+ */
+public class Cancellation
+{
+    private volatile boolean cancelled = false;
+
+    /**
+     * The <tt>System.nanoTime</tt> after which the token counts as
+     * cancelled, if <tt>has_deadline</tt>.
+     */
+    private final long deadline;
+    private final boolean has_deadline;
+
+    /**
+     * A token which is cancelled whenever this one is, or <tt>null</tt>.
+     */
+    private final Cancellation parent;
+
+    /**
+     * Creates a token which is only cancelled by <tt>cancel</tt>.
+     */
+    public Cancellation()
+    {
+        this(null, -1);
+    }
+
+    /**
+     * Creates a token which is cancelled by <tt>cancel</tt>, or when
+     * <tt>timeout</tt> milliseconds have passed.
+     */
+    public Cancellation(long timeout)
+    {
+        this(null, timeout);
+    }
+
+    /**
+     * Creates a token which is cancelled by <tt>cancel</tt>, or when
+     * <tt>parent</tt> (if not <tt>null</tt>) is cancelled.
+     */
+    public Cancellation(Cancellation parent)
+    {
+        this(parent, -1);
+    }
+
+    /**
+     * Creates a token which is cancelled by <tt>cancel</tt>, when
+     * <tt>parent</tt> (if not <tt>null</tt>) is cancelled, or when
+     * <tt>timeout</tt> milliseconds have passed (if it is not negative).
+     */
+    public Cancellation(Cancellation parent, long timeout)
+    {
+        this.parent = parent;
+        has_deadline = timeout >= 0;
+        deadline = has_deadline ? System.nanoTime() + timeout * 1000000 : 0;
+    }
+
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Checks whether the token was cancelled, its deadline has passed, or
+     * its parent is cancelled.
+     */
+    public boolean isCancelled()
+    {
+        if (cancelled)
+            return true;
+        if (isTimedOut())
+        {
+            cancelled = true;
+            return true;
+        }
+        return parent != null && parent.isCancelled();
+    }
+
+    /**
+     * Checks whether the deadline of the token, or of its parent, has
+     * passed.
+     */
+    public boolean isTimedOut()
+    {
+        if (has_deadline && System.nanoTime() - deadline >= 0)
+            return true;
+        return parent != null && parent.isTimedOut();
+    }
+}
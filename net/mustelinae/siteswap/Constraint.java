@@ -0,0 +1,41 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A condition on siteswaps which can be checked while they are being
+ * generated, so that the search can skip everything which doesn't satisfy
+ * it (see <tt>Generator.setConstraint</tt>).
+ *
+ * The generator finds siteswaps as cycles which may start at any of their
+ * throws, so a constraint must not depend on where the sequence starts:
+ * all rotations of a siteswap must either satisfy it or not. It must also
+ * be safe to use from several threads at once.
+ *
+ * See <tt>Constraints</tt> for the available implementations.
+ */
+public interface Constraint
+{
+    /**
+     * Checks whether siteswaps with period <tt>period</tt> can satisfy the
+     * constraint at all.
+     */
+    public boolean acceptsPeriod(int period);
+
+    /**
+     * Checks whether a siteswap with period <tt>period</tt> which starts
+     * with <tt>heights[0]</tt> to <tt>heights[length-1]</tt> can satisfy the
+     * constraint. Called each time a throw is added, so only the last throw
+     * needs to be checked against the rest; the throws before it have
+     * already been accepted.
+     */
+    public boolean acceptsPrefix(int[] heights, int length, int period);
+
+    /**
+     * Checks whether the siteswap with throw heights <tt>heights[0]</tt> to
+     * <tt>heights[period-1]</tt> satisfies the constraint. Called after all
+     * of its prefixes have been accepted, so only what couldn't be checked
+     * on them (e.g. conditions wrapping around the end of the sequence)
+     * needs to be checked.
+     */
+    public boolean acceptsCycle(int[] heights, int period);
+
+}
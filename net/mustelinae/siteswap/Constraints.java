@@ -0,0 +1,293 @@
+package net.mustelinae.siteswap;
+
+/**
+ * Static factory methods for <tt>Constraint</tt>s, including ones which
+ * match the classes of siteswaps defined in <tt>Siteswap</tt>.
+ */
+public class Constraints
+{
+    /**
+     * Returns the constraint for one of the conditions <tt>Filter</tt>
+     * accepts by name ('i1', 'i2' or 'nikolaj'), or <tt>null</tt> if
+     * <tt>name</tt> is not one of them.
+     */
+    public static Constraint forName(String name)
+    {
+        if ("i1".equalsIgnoreCase(name))
+            return interesting1();
+        else if ("i2".equalsIgnoreCase(name))
+            return interesting2();
+        else if ("nikolaj".equalsIgnoreCase(name))
+            return nikolaj();
+        return null;
+    }
+
+    /**
+     * Checks whether the complete siteswap with throw heights
+     * <tt>heights[0]</tt> to <tt>heights[period-1]</tt> satisfies
+     * <tt>constraint</tt>, by going through the same checks as the search
+     * does.
+     */
+    public static boolean accepts(Constraint constraint, int[] heights,
+                                  int period)
+    {
+        if (!constraint.acceptsPeriod(period))
+            return false;
+        for (int length = 1; length <= period; length++)
+            if (!constraint.acceptsPrefix(heights, length, period))
+                return false;
+        return constraint.acceptsCycle(heights, period);
+    }
+
+    /**
+     * A base for constraints which only check some of the three things.
+     */
+    public static abstract class Base
+        implements Constraint
+    {
+        @Override
+        public boolean acceptsPeriod(int period)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean acceptsPrefix(int[] heights, int length, int period)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean acceptsCycle(int[] heights, int period)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Returns a constraint satisfied by the siteswaps which satisfy all of
+     * <tt>constraints</tt>. They are checked in the given order, so cheap
+     * and selective ones should come first.
+     */
+    public static Constraint and(final Constraint... constraints)
+    {
+        return new Constraint()
+        {
+            @Override
+            public boolean acceptsPeriod(int period)
+            {
+                for (Constraint c : constraints)
+                    if (!c.acceptsPeriod(period))
+                        return false;
+                return true;
+            }
+
+            @Override
+            public boolean acceptsPrefix(int[] heights, int length, int period)
+            {
+                for (Constraint c : constraints)
+                    if (!c.acceptsPrefix(heights, length, period))
+                        return false;
+                return true;
+            }
+
+            @Override
+            public boolean acceptsCycle(int[] heights, int period)
+            {
+                for (Constraint c : constraints)
+                    if (!c.acceptsCycle(heights, period))
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Only allows throws with one of the given heights.
+     */
+    public static Constraint allowedHeights(int... heights)
+    {
+        final long mask = Utils.mask(heights);
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPrefix(int[] h, int length, int period)
+            {
+                return Utils.isIn(h[length - 1], mask);
+            }
+        };
+    }
+
+    /**
+     * Doesn't allow throws with any of the given heights.
+     */
+    public static Constraint forbiddenHeights(int... heights)
+    {
+        final long mask = Utils.mask(heights);
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPrefix(int[] h, int length, int period)
+            {
+                return !Utils.isIn(h[length - 1], mask);
+            }
+        };
+    }
+
+    /**
+     * Requires every throw of height <tt>high</tt> or more to follow a throw
+     * of height <tt>low</tt>.
+     */
+    public static Constraint highAfter(final int high, final int low)
+    {
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPrefix(int[] h, int length, int period)
+            {
+                // the first throw follows the last one, see acceptsCycle
+                return length == 1 || h[length - 1] < high || h[length - 2] == low;
+            }
+
+            @Override
+            public boolean acceptsCycle(int[] h, int period)
+            {
+                return h[0] < high || h[period - 1] == low;
+            }
+        };
+    }
+
+    /**
+     * Requires at least one throw of height <tt>high</tt> or more to follow
+     * a throw of height <tt>low</tt>. This can't be checked before a
+     * siteswap is complete, so it doesn't prune the search.
+     */
+    public static Constraint someHighAfter(final int high, final int low)
+    {
+        return new Base()
+        {
+            @Override
+            public boolean acceptsCycle(int[] h, int period)
+            {
+                for (int i = 0; i < period; i++)
+                    if (h[i] == low && h[(i+1)%period] >= high)
+                        return true;
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Allows at most <tt>max</tt> throws with one of the given heights.
+     */
+    public static Constraint maxCount(final int max, int... heights)
+    {
+        final long mask = Utils.mask(heights);
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPrefix(int[] h, int length, int period)
+            {
+                // the count can only have changed if the new throw counts
+                return !Utils.isIn(h[length - 1], mask) || count(h, length, mask) <= max;
+            }
+        };
+    }
+
+    /**
+     * Only allows periods which are not divisible by any of
+     * <tt>divisors</tt>.
+     */
+    public static Constraint periodNotDivisibleBy(final int... divisors)
+    {
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPeriod(int period)
+            {
+                for (int d : divisors)
+                    if (period % d == 0)
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Requires every throw higher than <tt>min_height</tt> to be coprime
+     * with the period.
+     */
+    public static Constraint coprimeWithPeriod(final int min_height)
+    {
+        return new Base()
+        {
+            @Override
+            public boolean acceptsPrefix(int[] h, int length, int period)
+            {
+                int x = h[length - 1];
+                return x <= min_height || gcd(x, period) == 1;
+            }
+        };
+    }
+
+    /**
+     * The constraint equivalent to <tt>Siteswap.isInteresting1</tt>.
+     */
+    public static Constraint interesting1()
+    {
+        return someHighAfter(4, 1);
+    }
+
+    /**
+     * The constraint equivalent to <tt>Siteswap.isInteresting2</tt>.
+     */
+    public static Constraint interesting2()
+    {
+        return highAfter(4, 1);
+    }
+
+    /**
+     * The constraint equivalent to <tt>Siteswap.isInterestingNikolaj</tt>.
+     */
+    public static Constraint nikolaj()
+    {
+        final long zeros_and_twos = Utils.mask(0, 2);
+        return and(
+                periodNotDivisibleBy(2, 3),
+                forbiddenHeights(1),
+                coprimeWithPeriod(2),
+                new Base()
+                {
+                    @Override
+                    public boolean acceptsPrefix(int[] h, int length, int period)
+                    {
+                        // "not too many 0s or 2s": fewer than 2 for periods
+                        // below 6, fewer than 3 otherwise
+                        if (!Utils.isIn(h[length - 1], zeros_and_twos))
+                            return true;
+                        int max = period < 6 ? 1 : 2;
+                        return count(h, length, zeros_and_twos) <= max;
+                    }
+                });
+    }
+
+    private static int count(int[] h, int length, long mask)
+    {
+        int count = 0;
+        for (int i = 0; i < length; i++)
+            if (Utils.isIn(h[i], mask))
+                count++;
+        return count;
+    }
+
+    private static int gcd(int a, int b)
+    {
+        while (b != 0)
+        {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,256 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Reads a file written by <tt>CorpusWriter</tt> (see there for the format).
+ * The records are memory-mapped, one period at a time as they are needed,
+ * and read in place: any record can be read in constant time, and all the
+ * records with a given period can be read without touching the others.
+ *
+ * The siteswaps read are in normalized form already. Reading a record is
+ * thread-safe.
+ */
+public class CorpusReader
+    implements Closeable
+{
+    /**
+     * The largest part of the file to map at once. <tt>FileChannel.map</tt>
+     * can't map more than 2GB.
+     */
+    private static final long MAX_MAP_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+
+    private final int balls;
+    private final int max_height;
+    private final int bits;
+    private final int period_from;
+    private final int period_to;
+
+    private final long[] offsets;
+    private final long[] counts;
+
+    /**
+     * The mapped records of each period, mapped on demand. Each buffer
+     * holds a whole number of records.
+     */
+    private final MappedByteBuffer[][] maps;
+
+    public CorpusReader(Path file)
+            throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            ByteBuffer fixed = read(0, 7 * 4);
+            if (fixed.getInt() != CorpusWriter.MAGIC)
+                throw new IOException("not a siteswap corpus: " + file);
+            int version = fixed.getInt();
+            if (version != CorpusWriter.VERSION)
+                throw new IOException("unsupported version: " + version);
+            balls = fixed.getInt();
+            max_height = fixed.getInt();
+            bits = fixed.getInt();
+            period_from = fixed.getInt();
+            period_to = fixed.getInt();
+            if (bits < 1 || bits > 31 || period_from < 1
+                    || period_to < period_from)
+                throw new IOException("invalid header: " + file);
+
+            int periods = period_to - period_from + 1;
+            ByteBuffer index = read(7 * 4, periods * 16);
+            offsets = new long[periods];
+            counts = new long[periods];
+            for (int i = 0; i < periods; i++)
+            {
+                offsets[i] = index.getLong();
+                counts[i] = index.getLong();
+            }
+            maps = new MappedByteBuffer[periods][];
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether <tt>file</tt> starts like a file written by
+     * <tt>CorpusWriter</tt>.
+     */
+    public static boolean isCorpus(Path file)
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining())
+                if (channel.read(magic, magic.position()) < 0)
+                    return false;
+            return magic.getInt(0) == CorpusWriter.MAGIC;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private ByteBuffer read(long position, int size)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("truncated header");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getBalls()
+    {
+        return balls;
+    }
+
+    public int getMaxHeight()
+    {
+        return max_height;
+    }
+
+    public int getPeriodFrom()
+    {
+        return period_from;
+    }
+
+    public int getPeriodTo()
+    {
+        return period_to;
+    }
+
+    /**
+     * Returns the number of siteswaps with period <tt>period</tt> in the
+     * file.
+     */
+    public long getCount(int period)
+    {
+        if (period < period_from || period > period_to)
+            return 0;
+        return counts[period - period_from];
+    }
+
+    /**
+     * Returns the size in bytes of a record with period <tt>period</tt>.
+     */
+    public int getRecordSize(int period)
+    {
+        return (period * bits + 7) / 8;
+    }
+
+    /**
+     * Reads the <tt>index</tt>-th siteswap with period <tt>period</tt>
+     * into <tt>out</tt>, which must have room for <tt>period</tt> throws.
+     */
+    public void get(int period, long index, int[] out)
+            throws IOException
+    {
+        if (index < 0 || index >= getCount(period))
+            throw new IndexOutOfBoundsException("no siteswap " + index
+                    + " with period " + period);
+
+        MappedByteBuffer[] map = getMap(period);
+        long per_map = getRecordsPerMap(period);
+        decode(map[(int) (index / per_map)],
+               (int) (index % per_map) * getRecordSize(period),
+               period, out);
+    }
+
+    /**
+     * Passes all the siteswaps with period <tt>period</tt> to
+     * <tt>handler</tt>, in the order they were written, until it returns
+     * <tt>false</tt>. The array passed to the handler is reused.
+     * @return the number of siteswaps passed to the handler
+     */
+    public long read(int period, SequenceHandler handler)
+            throws IOException
+    {
+        long count = getCount(period);
+        if (count == 0)
+            return 0;
+
+        int size = getRecordSize(period);
+        int[] sequence = new int[period];
+        long done = 0;
+        for (MappedByteBuffer map : getMap(period))
+        {
+            int records = map.limit() / size;
+            for (int i = 0; i < records; i++)
+            {
+                decode(map, i * size, period, sequence);
+                done++;
+                if (!handler.handle(sequence, period))
+                    return done;
+            }
+        }
+        return done;
+    }
+
+    private void decode(ByteBuffer map, int position, int period, int[] out)
+    {
+        int mask = (1 << bits) - 1;
+        long acc = 0;
+        int acc_bits = 0;
+        for (int i = 0; i < period; i++)
+        {
+            while (acc_bits < bits)
+            {
+                acc = (acc << 8) | (map.get(position++) & 0xff);
+                acc_bits += 8;
+            }
+            acc_bits -= bits;
+            out[i] = (int) (acc >>> acc_bits) & mask;
+        }
+    }
+
+    private long getRecordsPerMap(int period)
+    {
+        return Math.max(1, MAX_MAP_SIZE / getRecordSize(period));
+    }
+
+    /**
+     * Returns the mapped records with period <tt>period</tt>, mapping them
+     * if this is the first time they are needed.
+     */
+    private synchronized MappedByteBuffer[] getMap(int period)
+            throws IOException
+    {
+        int i = period - period_from;
+        if (maps[i] == null)
+        {
+            long size = getRecordSize(period);
+            long per_map = getRecordsPerMap(period);
+            int n = (int) ((counts[i] + per_map - 1) / per_map);
+            MappedByteBuffer[] map = new MappedByteBuffer[n];
+            for (int j = 0; j < n; j++)
+            {
+                long records = Math.min(per_map, counts[i] - j * per_map);
+                map[j] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                     offsets[i] + j * per_map * size,
+                                     records * size);
+            }
+            maps[i] = map;
+        }
+        return maps[i];
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+}
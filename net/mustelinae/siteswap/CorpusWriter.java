@@ -0,0 +1,239 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Writes siteswaps to a file in a compact binary format, which
+ * <tt>CorpusReader</tt> reads. It takes a fraction of the space of the
+ * text format (e.g. 3 bits per throw instead of 8 for a max height of 7,
+ * and no newlines), and the siteswaps can be read without being parsed or
+ * normalized.
+ *
+ * The file starts with a header:
+ * <pre>
+ *     int   MAGIC
+ *     int   VERSION
+ *     int   balls
+ *     int   max height
+ *     int   bits per throw
+ *     int   first period
+ *     int   last period
+ *     for every period from the first to the last:
+ *         long  offset of the first record with this period
+ *         long  number of records with this period
+ * </pre>
+ * followed by the records (big-endian, like all of the header). Every
+ * record holds one siteswap in normalized form (see
+ * <tt>Utils.normalize</tt>). Its throws are stored with the given number
+ * of bits each, most significant bit first, and the record is padded to a
+ * whole number of bytes. So all records with a given period have the same
+ * size, and any of them can be found from the index without reading the
+ * others.
+ *
+ * The records must be written in order of their period, which is how
+ * <tt>Generator</tt> generates them. The header is only complete once the
+ * writer is closed.
+ */
+public class CorpusWriter
+    implements SequenceHandler
+{
+    public static final int MAGIC = 0x53535750; // "SSWP"
+    public static final int VERSION = 1;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private final int balls;
+    private final int max_height;
+    private final int bits;
+    private final int period_from;
+    private final int period_to;
+
+    /**
+     * The offsets and record counts of the periods, as in the header.
+     */
+    private final long[] offsets;
+    private final long[] counts;
+
+    /**
+     * The period of the last record written, or <tt>period_from - 1</tt>
+     * before the first one.
+     */
+    private int period;
+
+    /**
+     * The offset in the file at which the buffer starts.
+     */
+    private long position;
+
+    public CorpusWriter(FileChannel channel, int balls, int max_height,
+                        int period_from, int period_to)
+    {
+        this(channel, balls, max_height, period_from, period_to,
+             SiteswapWriter.BUFFER_SIZE);
+    }
+
+    public CorpusWriter(FileChannel channel, int balls, int max_height,
+                        int period_from, int period_to, int buffer_size)
+    {
+        if (max_height < 0 || period_from < 1 || period_to < period_from)
+            throw new IllegalArgumentException("invalid parameters");
+
+        this.channel = channel;
+        this.balls = balls;
+        this.max_height = max_height;
+        this.bits = getBits(max_height);
+        this.period_from = period_from;
+        this.period_to = period_to;
+
+        offsets = new long[period_to - period_from + 1];
+        counts = new long[offsets.length];
+        period = period_from - 1;
+        position = getHeaderSize(offsets.length);
+        buffer = ByteBuffer.allocateDirect(buffer_size);
+    }
+
+    /**
+     * Returns the number of bits needed for throws up to
+     * <tt>max_height</tt>.
+     */
+    static int getBits(int max_height)
+    {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(max_height));
+    }
+
+    /**
+     * Returns the size of the header of a file with <tt>periods</tt>
+     * periods.
+     */
+    static int getHeaderSize(int periods)
+    {
+        return 7 * 4 + periods * 16;
+    }
+
+    /**
+     * Writes a siteswap. Throws an <tt>UncheckedIOException</tt> if writing
+     * fails.
+     */
+    @Override
+    public boolean handle(int[] sequence, int length)
+    {
+        try
+        {
+            write(sequence, length);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the siteswap with throw heights <tt>sequence[0]</tt> to
+     * <tt>sequence[length-1]</tt>, which must be in normalized form, and
+     * have a period no smaller than that of the siteswaps written before.
+     */
+    public void write(int[] sequence, int length)
+            throws IOException
+    {
+        if (length != period)
+            startPeriod(length);
+
+        int size = (length * bits + 7) / 8;
+        if (buffer.remaining() < size)
+        {
+            flushBuffer();
+            if (buffer.remaining() < size)
+                throw new IOException("siteswap too long for the buffer");
+        }
+
+        long acc = 0;
+        int acc_bits = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int height = sequence[i];
+            if (height < 0 || height > max_height)
+                throw new IOException("throw out of range: " + height);
+            acc = (acc << bits) | height;
+            acc_bits += bits;
+            while (acc_bits >= 8)
+            {
+                acc_bits -= 8;
+                buffer.put((byte) (acc >>> acc_bits));
+            }
+        }
+        if (acc_bits > 0)
+            buffer.put((byte) (acc << (8 - acc_bits)));
+
+        counts[length - period_from]++;
+    }
+
+    private void startPeriod(int length)
+            throws IOException
+    {
+        if (length < period || length > period_to)
+            throw new IOException("unexpected period: " + length);
+
+        long offset = position + buffer.position();
+        // the periods skipped have no records, they end where the next
+        // one starts
+        for (int p = period + 1; p <= length; p++)
+            offsets[p - period_from] = offset;
+        period = length;
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+    }
+
+    /**
+     * Writes out everything buffered so far.
+     */
+    public void flush()
+            throws IOException
+    {
+        flushBuffer();
+    }
+
+    /**
+     * Writes out everything, completes the header and closes the channel.
+     */
+    public void close()
+            throws IOException
+    {
+        flushBuffer();
+        for (int p = period + 1; p <= period_to; p++)
+            offsets[p - period_from] = position;
+
+        ByteBuffer header = ByteBuffer.allocate(getHeaderSize(offsets.length));
+        header.putInt(MAGIC).putInt(VERSION)
+                .putInt(balls).putInt(max_height).putInt(bits)
+                .putInt(period_from).putInt(period_to);
+        for (int i = 0; i < offsets.length; i++)
+            header.putLong(offsets[i]).putLong(counts[i]);
+        header.flip();
+        long pos = 0;
+        while (header.hasRemaining())
+            pos += channel.write(header, pos);
+        channel.close();
+    }
+
+    /**
+     * Returns the number of siteswaps written so far.
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (long c : counts)
+            count += c;
+        return count;
+    }
+}
@@ -0,0 +1,667 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+
+/**
+ * Enumerates the closed walks of a fixed length, or of a range of lengths,
+ * in a <tt>StateGraph</tt>, which start and end at a given root node. The
+ * walks are found in depth-first order, following the edges of each node by
+ * increasing throw height.
+ *
+ * The search is iterative and can be resumed: the current path is kept in
+ * fixed-size arrays (a stack of nodes and a stack of edge cursors), so
+ * nothing is allocated per visited node and the depth of the search is not
+ * limited by the call stack. The throw heights of the current path are kept
+ * along with it, so there is no need to look up edge labels afterwards.
+ *
+ * Typical usage:
+ * <pre>
+ *     enumerator.reset(root);
+ *     while (enumerator.next())
+ *         handle(enumerator.getThrows(), enumerator.getLength());
+ * </pre>
+ *
+ * With a range of lengths, a single search covers all of them: whenever the
+ * path gets back to the root with a length in the range, the walk is
+ * reported, and then the search goes on extending the path. So a prefix
+ * shared by walks of different lengths is only followed once, instead of
+ * once per length. The walks are found in depth-first order, so walks of
+ * different lengths are mixed, a walk coming right before the longer ones
+ * which start with it.
+ *
+ * By default every closed walk is reported, so a cycle of the graph with
+ * period <tt>p</tt> is found up to <tt>p</tt> times, once from every node on
+ * it (and walks which just repeat a shorter cycle are reported, too). In
+ * canonical mode (see <tt>setCanonical</tt>) each cycle is reported exactly
+ * once.
+ *
+ * With pruning (see <tt>setPruning</tt>), the search doesn't follow edges
+ * to nodes from which the root can't be reached with the edges that are
+ * left. With a <tt>Constraint</tt> (see <tt>setConstraint</tt>), it doesn't
+ * follow edges which make the path violate it.
+ */
+public class CycleEnumerator
+{
+    private final StateGraph graph;
+
+    /**
+     * The length of the walks, or the largest one with a range of lengths.
+     */
+    private final int period;
+
+    /**
+     * The smallest length of the walks.
+     */
+    private final int min_period;
+
+    /**
+     * The length of the last walk found.
+     */
+    private int length;
+
+    /**
+     * The lengths in the range which the constraint accepts, see
+     * <tt>reset</tt>. Walks of any other length are not reported.
+     */
+    private final boolean[] accepted;
+
+    /**
+     * The index of the node where the walks start and end.
+     */
+    private int root;
+
+    /**
+     * <tt>states[d]</tt> is the index of the node at depth <tt>d</tt> of the
+     * current path.
+     */
+    private final int[] states;
+
+    /**
+     * <tt>cursors[d]</tt> is the next edge to try from <tt>states[d]</tt>.
+     * For the last node of the path, it is the edge back to the root, or -1
+     * if there is no such edge (or it has already been tried).
+     */
+    private final int[] cursors;
+
+    /**
+     * <tt>heights[d]</tt> is the label of the edge from <tt>states[d]</tt>
+     * to <tt>states[d+1]</tt>.
+     */
+    private final int[] heights;
+
+    /**
+     * In canonical mode, <tt>borders[d]</tt> is the depth of the first
+     * occurrence of the root after depth 0 from which the path up to depth
+     * <tt>d</tt> has the same throw heights as from depth 0, or 0 if there
+     * is none. See <tt>acceptsRotations</tt>.
+     */
+    private final int[] borders;
+
+    /**
+     * The depth at which to resume the search, or -1 if the search is over.
+     */
+    private int depth = -1;
+
+    /**
+     * Whether to report only the canonical walk of each cycle.
+     */
+    private boolean canonical = false;
+
+    /**
+     * The constraint the walks must satisfy, if any.
+     */
+    private Constraint constraint;
+
+    /**
+     * Whether to compute the distances to the root in <tt>reset</tt>.
+     */
+    private boolean pruning = false;
+
+    /**
+     * The length of the shortest path from each node back to the root (see
+     * <tt>StateGraph.getDistancesTo</tt>), or <tt>null</tt> to not prune
+     * the search.
+     */
+    private byte[] distances;
+
+    /**
+     * The nodes for which <tt>distances</tt> is set, if it is owned by this
+     * enumerator. Used to reset them.
+     */
+    private int[] reached;
+    private int reached_count = 0;
+
+    /**
+     * The depth of the fixed prefix of the path, see <tt>push</tt>. The
+     * search never backtracks above it.
+     */
+    private int base = 0;
+
+    /**
+     * Whether the fixed prefix is a walk itself, which <tt>next</tt> has
+     * yet to report (see <tt>push</tt>).
+     */
+    private boolean pending = false;
+
+    /**
+     * The token to stop the search with, if any, and the number of steps
+     * since it was last checked.
+     */
+    private Cancellation cancellation;
+    private int steps = 0;
+
+    /**
+     * The token is checked every this many steps (a power of 2).
+     */
+    private static final int CANCELLATION_INTERVAL = 1 << 12;
+
+    public CycleEnumerator(StateGraph graph, int period)
+    {
+        this(graph, period, period);
+    }
+
+    /**
+     * Creates an enumerator of the walks with lengths from
+     * <tt>min_period</tt> to <tt>max_period</tt>.
+     */
+    public CycleEnumerator(StateGraph graph, int min_period, int max_period)
+    {
+        if (min_period < 1 || max_period < min_period)
+            throw new IllegalArgumentException("invalid periods: "
+                    + min_period + " to " + max_period);
+        this.graph = graph;
+        this.min_period = min_period;
+        this.period = max_period;
+        states = new int[period + 1];
+        cursors = new int[period];
+        heights = new int[period];
+        borders = new int[period + 1];
+        accepted = new boolean[period + 1];
+    }
+
+    /**
+     * Sets whether to only report the canonical walk of each cycle. A walk
+     * is canonical if
+     * <ul>
+     * <li>the root has the smallest index of all nodes on it,</li>
+     * <li>it is not a repetition of a shorter walk, and</li>
+     * <li>among its rotations which also start at the root, its throw
+     * heights are the lexicographically largest.</li>
+     * </ul>
+     * The first condition is enforced while searching, by not following
+     * edges to nodes with a smaller index than the root, which also cuts
+     * down the search a lot. So is the third one as far as it can be
+     * decided from the path (see <tt>acceptsRotations</tt>), so that the
+     * search doesn't go through the many paths which get back to the root
+     * early and can't lead to a canonical walk. The rest is checked when a
+     * walk closes.
+     *
+     * Must be called before <tt>reset</tt>.
+     */
+    public void setCanonical(boolean canonical)
+    {
+        this.canonical = canonical;
+    }
+
+    /**
+     * Sets a constraint which the throw heights of the walks must satisfy,
+     * or <tt>null</tt> for none. It is checked on every prefix of the path,
+     * and the search backtracks as soon as a prefix is rejected. With a
+     * range of lengths, a prefix is only rejected if no walk of any of the
+     * lengths can start with it.
+     *
+     * Must be called before <tt>reset</tt>.
+     */
+    public void setConstraint(Constraint constraint)
+    {
+        this.constraint = constraint;
+    }
+
+    /**
+     * Sets a token which stops the search when it is cancelled, or
+     * <tt>null</tt> for none. It is checked every few thousand steps, and
+     * when it is found cancelled <tt>next</tt> returns <tt>false</tt>, as
+     * if there were no more walks.
+     */
+    public void setCancellation(Cancellation cancellation)
+    {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Sets whether to prune the search using the distances from each node
+     * back to the root. They are computed (by a breadth-first search on the
+     * reversed graph) on every <tt>reset</tt>, so this pays off unless the
+     * search from a root is tiny. It has no effect for (maximum) periods of
+     * <tt>StateGraph.UNREACHED</tt> or more.
+     *
+     * Must be called before <tt>reset</tt>.
+     */
+    public void setPruning(boolean pruning)
+    {
+        this.pruning = pruning;
+    }
+
+    /**
+     * Returns the index of the smallest node the walks may go through:
+     * the root in canonical mode, 0 otherwise. Distances for
+     * <tt>reset(int, byte[])</tt> should be computed through nodes with
+     * indices at least this.
+     */
+    public int getMinIndex(int root)
+    {
+        return canonical ? root : 0;
+    }
+
+    /**
+     * Restarts the search from the node with index <tt>root</tt>.
+     */
+    public void reset(int root)
+    {
+        byte[] d = null;
+        if (pruning && period - 1 < StateGraph.UNREACHED)
+        {
+            if (distances == null || reached == null)
+            {
+                distances = new byte[graph.size()];
+                Arrays.fill(distances, StateGraph.UNREACHED);
+                reached = new int[graph.size()];
+            }
+            for (int i = 0; i < reached_count; i++)
+                distances[reached[i]] = StateGraph.UNREACHED;
+            reached_count = graph.getDistancesTo(root, getMinIndex(root),
+                    period - 1, distances, reached);
+            d = distances;
+        }
+        reset(root, d);
+    }
+
+    /**
+     * Restarts the search from the node with index <tt>root</tt>, pruning it
+     * with the given distances to the root instead of computing them.
+     * @param distances the distances from each node to <tt>root</tt>, as
+     * computed by <tt>StateGraph.getDistancesTo</tt> through nodes with index
+     * at least <tt>getMinIndex(root)</tt> and up to at least
+     * <tt>period-1</tt>, or <tt>null</tt> to not prune
+     */
+    public void reset(int root, byte[] distances)
+    {
+        if (distances != this.distances)
+        {
+            // not ours
+            this.distances = distances;
+            reached = null;
+            reached_count = 0;
+        }
+        this.root = root;
+        states[0] = root;
+        cursors[0] = firstCursor(0, root);
+        borders[0] = 0;
+        depth = 0;
+        base = 0;
+        pending = false;
+
+        boolean any = false;
+        for (int p = min_period; p <= period; p++)
+            any |= accepted[p] = constraint == null
+                    || constraint.acceptsPeriod(p);
+        if (!any)
+            depth = -1;
+    }
+
+    /**
+     * Fixes the next edge of the path to <tt>edge</tt>, so that only walks
+     * which start with the current prefix followed by <tt>edge</tt> are
+     * enumerated. Must be called right after <tt>reset</tt> or another
+     * successful call to <tt>push</tt>, and only while the prefix is shorter
+     * than <tt>period-1</tt> edges.
+     * If the prefix gets back to the root with a length in the range, it
+     * is a walk itself, and the first one <tt>next</tt> reports.
+     * @param edge an edge going out of the last node of the prefix
+     * @return <tt>false</tt> if the search would not follow <tt>edge</tt>
+     * (in canonical mode or because of pruning), in which case there are no
+     * walks to enumerate.
+     */
+    public boolean push(int edge)
+    {
+        if (depth != base || base >= period - 1)
+            throw new IllegalStateException("cannot extend the prefix");
+
+        int target = graph.getEdgeTarget(edge);
+        heights[base] = graph.getEdgeLabel(edge);
+        if (!canFollow(target, base) || !acceptsPrefix(base + 1)
+                || !acceptsRotations(base, target))
+        {
+            depth = -1;
+            return false;
+        }
+
+        // the edge taken at each depth of the path is the one before the
+        // cursor, see split
+        cursors[base] = edge + 1;
+        base++;
+        states[base] = target;
+        cursors[base] = firstCursor(base, target);
+        depth = base;
+        pending = target == root && base >= min_period;
+        return true;
+    }
+
+    /**
+     * Checks the first <tt>length</tt> throw heights against the constraint,
+     * if any, for all lengths of the walks which can start with them.
+     */
+    private boolean acceptsPrefix(int length)
+    {
+        if (constraint == null)
+            return true;
+        for (int p = Math.max(length, min_period); p <= period; p++)
+            if (accepted[p] && constraint.acceptsPrefix(heights, length, p))
+                return true;
+        return false;
+    }
+
+    /**
+     * Checks whether the path, which has just got back to the root with
+     * <tt>length</tt> edges, is a walk to report, and if so makes it the
+     * last walk found.
+     */
+    private boolean closes(int length)
+    {
+        if (constraint != null)
+        {
+            if (min_period == period)
+            {
+                // all prefixes were checked with this period already
+                if (!(constraint.acceptsPrefix(heights, length, length)
+                      && constraint.acceptsCycle(heights, length)))
+                    return false;
+            }
+            else if (!Constraints.accepts(constraint, heights, length))
+                return false;
+        }
+        this.length = length;
+        return !canonical || isCanonical();
+    }
+
+    /**
+     * In canonical mode, checks whether the path can still be the largest
+     * of its rotations starting at the root, with the throw height
+     * <tt>heights[d]</tt> to <tt>target</tt> added, and updates
+     * <tt>borders</tt>.
+     *
+     * The rotation from an occurrence of the root at depth <tt>k</tt> has
+     * the same throws as the path from depth 0 as long as they have been
+     * equal so far; then the next throw may not be larger than the one
+     * after the same number of throws from depth 0, or the rotation is
+     * larger for any length of the walk. Only the first such occurrence
+     * needs to be checked: the rotations from the later ones are rotations
+     * of it too, and as the path is not smaller than them, neither is the
+     * throw compared with.
+     */
+    private boolean acceptsRotations(int d, int target)
+    {
+        if (!canonical)
+            return true;
+        int border = borders[d];
+        if (border > 0)
+        {
+            int diff = heights[d] - heights[d - border];
+            if (diff > 0)
+                return false;
+            if (diff < 0)
+                border = 0;
+        }
+        if (border == 0 && target == root)
+            border = d + 1;
+        borders[d + 1] = border;
+        return true;
+    }
+
+    /**
+     * Checks whether the search may put <tt>target</tt> at depth
+     * <tt>d+1</tt> of the path.
+     */
+    private boolean canFollow(int target, int d)
+    {
+        if (canonical && target < root)
+            return false;
+        // 'target' must be able to get back to the root with the remaining
+        // period-d-1 edges
+        if (distances != null && distances[target] > period - d - 1)
+            return false;
+        return true;
+    }
+
+    /**
+     * Advances to the next closed walk.
+     * @return <tt>true</tt> if a walk was found, in which case its throw
+     * heights are available from <tt>getThrows</tt>, and <tt>false</tt> if
+     * there are no more walks from the current root.
+     */
+    public boolean next()
+    {
+        if (pending)
+        {
+            pending = false;
+            if (closes(base))
+                return true;
+        }
+
+        int d = depth;
+        while (d >= base)
+        {
+            if (cancellation != null
+                    && (++steps & (CANCELLATION_INTERVAL - 1)) == 0
+                    && cancellation.isCancelled())
+            {
+                depth = -1;
+                return false;
+            }
+
+            int edge = cursors[d];
+            if (d == period - 1)
+            {
+                // whatever happens, we backtrack after this
+                cursors[d] = -1;
+                d--;
+                if (edge != -1 && accepted[period])
+                {
+                    heights[period - 1] = graph.getEdgeLabel(edge);
+                    states[period] = root;
+                    if (!closes(period))
+                        continue;
+                    depth = d;
+                    return true;
+                }
+                continue;
+            }
+
+            if (edge == graph.getEdgeEnd(states[d]))
+            {
+                d--;
+                continue;
+            }
+            cursors[d] = edge + 1;
+
+            int target = graph.getEdgeTarget(edge);
+            if (!canFollow(target, d))
+                continue;
+            heights[d] = graph.getEdgeLabel(edge);
+            if (!acceptsPrefix(d + 1) || !acceptsRotations(d, target))
+                continue;
+            d++;
+            states[d] = target;
+            cursors[d] = firstCursor(d, target);
+            if (target == root && d >= min_period && accepted[d] && closes(d))
+            {
+                // resume by extending the walk
+                depth = d;
+                return true;
+            }
+        }
+
+        depth = -1;
+        return false;
+    }
+
+    /**
+     * Takes the edges which the search hasn't tried yet at the shallowest
+     * depth of the current path where there are any out of the search, so
+     * that they can be searched separately. The edge the search would
+     * continue with is kept, so the search is not left empty.
+     * @return a prefix (for <tt>push</tt>) for each of the edges taken,
+     * leading from the root to the edge; empty if nothing can be taken
+     */
+    public int[][] split()
+    {
+        if (pending)
+            return new int[0][];
+        for (int d = base; d <= depth && d < period - 1; d++)
+        {
+            int end = graph.getEdgeEnd(states[d]);
+            // at the depth the search resumes from, the cursor is the edge
+            // it continues with
+            int first = d == depth ? cursors[d] + 1 : cursors[d];
+
+            int count = 0;
+            for (int edge = first; edge < end; edge++)
+                if (canFollow(graph.getEdgeTarget(edge), d))
+                    count++;
+            if (count == 0)
+                continue;
+
+            int[][] prefixes = new int[count][];
+            int i = 0;
+            for (int edge = first; edge < end; edge++)
+            {
+                if (!canFollow(graph.getEdgeTarget(edge), d))
+                    continue;
+                int[] prefix = new int[d + 1];
+                for (int j = 0; j < d; j++)
+                    prefix[j] = cursors[j] - 1;
+                prefix[d] = edge;
+                prefixes[i++] = prefix;
+            }
+
+            if (d < depth)
+            {
+                cursors[d] = end;
+            }
+            else
+            {
+                // nothing is left to search above this depth, so the path
+                // is as good as fixed up to here, and the edge which is
+                // kept can be fixed, too
+                base = d;
+                push(cursors[d]);
+            }
+            return prefixes;
+        }
+        return new int[0][];
+    }
+
+    /**
+     * Returns the number of edges in the fixed prefix of the path.
+     */
+    public int getPrefixLength()
+    {
+        return base;
+    }
+
+    /**
+     * Checks the conditions for a closed walk to be canonical which are not
+     * enforced during the search: compares the walk with its rotations
+     * starting at the other occurrences of the root on it, where they wrap
+     * around its end. An equal rotation means the walk repeats a shorter
+     * one.
+     */
+    private boolean isCanonical()
+    {
+        for (int i = 1; i < length; i++)
+        {
+            if (states[i] == root && compareRotation(i) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the throw heights of the current walk rotated by
+     * <tt>shift</tt> with the unrotated ones, returning a positive number,
+     * zero or a negative number if the rotation is lexicographically bigger,
+     * the same or smaller respectively.
+     */
+    private int compareRotation(int shift)
+    {
+        int j = shift;
+        for (int i = 0; i < length; i++)
+        {
+            int diff = heights[j] - heights[i];
+            if (diff != 0)
+                return diff;
+            if (++j == length)
+                j = 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the cursor for a node which has just been put at depth
+     * <tt>d</tt> of the path. The last node of the path can only be followed
+     * by the root, and there is at most one edge to it, so it is looked up
+     * directly instead of scanning all the edges.
+     */
+    private int firstCursor(int d, int node)
+    {
+        if (d == period - 1)
+            return graph.getEdge(node, root);
+        return graph.getFirstEdge(node);
+    }
+
+    /**
+     * Returns the throw heights of the last walk found, in the first
+     * <tt>getLength()</tt> entries. The array is reused by subsequent calls
+     * to <tt>next</tt>.
+     */
+    public int[] getThrows()
+    {
+        return heights;
+    }
+
+    /**
+     * Returns the length of the last walk found.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the index of the node at depth <tt>d</tt> of the last walk
+     * found, with <tt>0 &lt;= d &lt;= getLength()</tt>.
+     */
+    public int getState(int d)
+    {
+        return states[d];
+    }
+
+    /**
+     * Returns the length of the walks, or the largest one with a range of
+     * lengths.
+     */
+    public int getPeriod()
+    {
+        return period;
+    }
+
+    public int getMinPeriod()
+    {
+        return min_period;
+    }
+
+    public int getRoot()
+    {
+        return root;
+    }
+}
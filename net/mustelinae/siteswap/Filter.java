@@ -1,89 +1,273 @@
 package net.mustelinae.siteswap;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
 
 
 /**
  * Reads siteswaps from a file (one siteswap on a line) and outputs to stdout 
- * only those siteswaps which satisfy a certain condition. See the code for 
- * available conditions.
+ * only those siteswaps which satisfy a certain condition. A condition is an
+ * expression (see <tt>Predicates</tt>), e.g. 'i1' or 'i2 &amp; max&lt;=7'.
+ *
+ * Several conditions can be checked in a single pass over the file, each
+ * followed by '-o &lt;file&gt;' to write the siteswaps satisfying it to that
+ * file instead of stdout. A line is written to an output once if it
+ * satisfies any of the conditions for that output. Only lines which are
+ * valid siteswaps are ever written.
+ *
+ * With '-u', every siteswap is output only once, even
+ * if the file contains it several times (possibly rotated or repeated).
+ * With '-m', the file is memory-mapped and filtered on all cores (see
+ * <tt>MappedFilter</tt>), which is much faster for big files.
+ *
+ * The file may also be a binary corpus (see <tt>CorpusWriter</tt>), whose
+ * siteswaps are read without being parsed or normalized. It is
+ * memory-mapped anyway, so '-m' makes no difference for it.
  *
  * @author Boris Grozev
  */
 public class Filter {
     public static void main(String[] args) {
-        if (args == null || args.length != 2)
+        boolean unique = false;
+        boolean mapped = false;
+        while (args != null && args.length > 2)
         {
-            System.err.println("Usage: Filter <'i1' | 'i2' | 'nikolaj'> <filename>");
-            return;
+            if ("-u".equals(args[0]))
+                unique = true;
+            else if ("-m".equals(args[0]))
+                mapped = true;
+            else
+                break;
+            args = Arrays.copyOfRange(args, 1, args.length);
         }
-
-        F filter = null;
-        if ("i1".equalsIgnoreCase(args[0]))
+        if (args == null || args.length < 2 || (unique && mapped))
         {
-            filter = new F() {
-                @Override
-                public boolean f(String s) {
-                    return (new Siteswap(s).isInteresting1());
-                }
-            };
-        }
-        else if ("i2".equalsIgnoreCase(args[0]))
-        {
-            filter = new F() {
-                @Override
-                public boolean f(String s) {
-                    return (new Siteswap(s).isInteresting2());
-                }
-            };
+            System.err.println("Usage: Filter [-u | -m] <condition> [-o <file>] "
+                    + "[<condition> [-o <file>] ...] <filename>");
+            System.err.println("  where <condition> combines 'i1', 'i2', "
+                    + "'nikolaj', 'reversible', 'period|max|balls <op> <n>', "
+                    + "'has:<heights>' and 'only:<heights>' with ! & | ( )");
+            return;
         }
-        else if ("nikolaj".equalsIgnoreCase(args[0]))
+
+        String filename = args[args.length - 1];
+        boolean corpus = CorpusReader.isCorpus(Paths.get(filename));
+
+        // the conditions for each output, null standing for stdout
+        Map<String, List<SiteswapPredicate>> conditions
+                = new LinkedHashMap<String, List<SiteswapPredicate>>();
+        // and the expressions they were parsed from
+        final Map<String, List<String>> expressions
+                = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < args.length - 1; i++)
         {
-            filter = new F() {
-                @Override
-                public boolean f(String s) {
-                    return (new Siteswap(s).isInterestingNikolaj());
-                }
-            };
+            SiteswapPredicate condition;
+            String expression = args[i];
+            try
+            {
+                condition = Predicates.parse(expression);
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("Invalid filter: " + e.getMessage());
+                return;
+            }
+
+            String output = null;
+            if (i + 2 < args.length - 1 && "-o".equals(args[i + 1]))
+            {
+                output = args[i + 2];
+                i += 2;
+            }
+            if (!conditions.containsKey(output))
+            {
+                conditions.put(output, new ArrayList<SiteswapPredicate>());
+                expressions.put(output, new ArrayList<String>());
+            }
+            conditions.get(output).add(condition);
+            expressions.get(output).add(expression);
         }
 
-        if (filter == null)
+        if (mapped && !corpus)
         {
-            System.err.println("Invalid filter.");
+            filterMapped(expressions, filename);
             return;
         }
 
-
-        BufferedReader br;
+        BufferedReader br = null;
+        CorpusReader reader = null;
         try
         {
-            br = new BufferedReader(new FileReader(args[1]));
+            if (corpus)
+                reader = new CorpusReader(Paths.get(filename));
+            else
+                br = new BufferedReader(new FileReader(filename));
         }
         catch (FileNotFoundException e)
         {
-            System.err.println("Could not open file: "+args[1]);
+            System.err.println("Could not open file: "+filename);
+            return;
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
             return;
         }
 
+        int n = conditions.size();
+        final SiteswapPredicate[] filters = new SiteswapPredicate[n];
+        final PrintStream[] outputs = new PrintStream[n];
+        // the siteswaps output so far, if they need to be unique
+        final SiteswapSet[] seen = new SiteswapSet[n];
+
         String line;
         try
         {
-            while ((line = br.readLine()) != null)
+            int i = 0;
+            for (Map.Entry<String, List<SiteswapPredicate>> e
+                    : conditions.entrySet())
             {
-                if(filter.f(line))
-                    System.out.println(""+line);
+                List<SiteswapPredicate> list = e.getValue();
+                filters[i] = Predicates.or(
+                        list.toArray(new SiteswapPredicate[list.size()]));
+                outputs[i] = e.getKey() == null ? System.out
+                        : new PrintStream(new BufferedOutputStream(
+                                new FileOutputStream(e.getKey()), 1 << 16));
+                if (unique)
+                    seen[i] = new SiteswapSet();
+                i++;
+            }
+
+            if (reader != null)
+            {
+                // the records are normalized already, and need no parsing
+                SequenceHandler handler = new SequenceHandler()
+                {
+                    @Override
+                    public boolean handle(int[] sequence, int length)
+                    {
+                        Siteswap siteswap = new Siteswap(
+                                Arrays.copyOf(sequence, length), true);
+                        if (siteswap.isValid())
+                            output(siteswap, siteswap.toString(),
+                                   filters, outputs, seen);
+                        return true;
+                    }
+                };
+                for (int period = reader.getPeriodFrom();
+                        period <= reader.getPeriodTo(); period++)
+                    reader.read(period, handler);
+                reader.close();
+            }
+            else
+            {
+                while ((line = br.readLine()) != null)
+                {
+                    // parsed once, for all conditions
+                    Siteswap siteswap = new Siteswap(line);
+                    if (siteswap.isValid())
+                        output(siteswap, line, filters, outputs, seen);
+                }
+                br.close();
             }
-            br.close();
         }
         catch (IOException e)
         {
             System.err.println("IOException: "+e);
-            return;
+        }
+        finally
+        {
+            for (PrintStream out : outputs)
+            {
+                if (out == System.out)
+                    out.flush();
+                else if (out != null)
+                    out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes <tt>line</tt>, which holds <tt>siteswap</tt>, to the outputs
+     * whose filter it satisfies.
+     */
+    private static void output(Siteswap siteswap, String line,
+                               SiteswapPredicate[] filters,
+                               PrintStream[] outputs, SiteswapSet[] seen)
+    {
+        for (int i = 0; i < filters.length; i++)
+        {
+            if (filters[i].test(siteswap)
+                    && (seen[i] == null || seen[i].add(siteswap)))
+                outputs[i].println(""+line);
         }
     }
 
-    private interface F
+    /**
+     * Filters with a <tt>MappedFilter</tt>. The expressions (already known
+     * to be valid) are parsed again for each chunk, since the predicates
+     * <tt>Predicates</tt> makes can't be shared between threads.
+     * @param expressions the expressions for each output, <tt>null</tt>
+     * standing for stdout
+     */
+    private static void filterMapped(
+            final Map<String, List<String>> expressions, String filename)
     {
-        public boolean f(String s);
+        Supplier<SiteswapPredicate[]> predicates
+                = new Supplier<SiteswapPredicate[]>()
+        {
+            @Override
+            public SiteswapPredicate[] get()
+            {
+                SiteswapPredicate[] ret
+                        = new SiteswapPredicate[expressions.size()];
+                int i = 0;
+                for (List<String> list : expressions.values())
+                {
+                    SiteswapPredicate[] or = new SiteswapPredicate[list.size()];
+                    for (int j = 0; j < or.length; j++)
+                        or[j] = Predicates.parse(list.get(j));
+                    ret[i++] = Predicates.or(or);
+                }
+                return ret;
+            }
+        };
+
+        FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        FileChannel[] outputs = new FileChannel[expressions.size()];
+        try
+        {
+            int i = 0;
+            for (String output : expressions.keySet())
+                outputs[i++] = output == null
+                        ? stdout : new FileOutputStream(output).getChannel();
+            new MappedFilter(predicates).filter(Paths.get(filename), outputs);
+        }
+        catch (NoSuchFileException e)
+        {
+            System.err.println("Could not open file: "+filename);
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        finally
+        {
+            for (FileChannel out : outputs)
+            {
+                try
+                {
+                    if (out != null && out != stdout)
+                        out.close();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("IOException: "+e);
+                }
+            }
+        }
     }
 }
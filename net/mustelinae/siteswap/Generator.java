@@ -1,6 +1,12 @@
 package net.mustelinae.siteswap;
 
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 /**
  * @author Boris Grozev
@@ -9,11 +15,148 @@ public class Generator
 {
     private static boolean DEBUG = Utils.DEBUG;
     private SiteswapHandler handler;
+
+    /**
+     * If set, used instead of <tt>handler</tt>.
+     */
+    private SequenceHandler sequence_handler;
+
+    /**
+     * If set (and <tt>sequence_handler</tt> isn't), used instead of
+     * <tt>handler</tt>, with <tt>batches[period]</tt> collecting the
+     * siteswaps with each period until it is full.
+     */
+    private BatchHandler batch_handler;
+    private int batch_size;
+    private SiteswapBatch[] batches;
+
+    /**
+     * Scratch space for the sequence of the siteswap being handled.
+     */
+    private int[] sequence;
     private int balls;
     private int max_height;
     private int generated_patterns = 0;
     private StateGraph graph;
 
+    /**
+     * The number of threads to generate with. With 1, everything is done on
+     * the thread calling <tt>generate</tt>.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Whether to generate every siteswap only once, see
+     * <tt>setCanonical</tt>.
+     */
+    private boolean canonical = false;
+
+    /**
+     * The constraint the generated siteswaps must satisfy, if any.
+     */
+    private Constraint constraint;
+
+    /**
+     * Whether to search without building the graph, see
+     * <tt>setImplicit</tt>.
+     */
+    private boolean implicit = false;
+
+    /**
+     * The pool used when <tt>parallelism</tt> is bigger than 1, created on
+     * demand.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * In parallel mode, the search from a root is split into subtasks, one
+     * for each edge continuing the path, down to this depth.
+     */
+    private static final int SPLIT_DEPTH = 2;
+
+    /**
+     * In parallel mode, paths are not split if less than this many edges
+     * remain to be found; the subtasks would be too small to pay off.
+     */
+    private static final int MIN_SPLIT_LENGTH = 6;
+
+    /**
+     * In parallel mode, the number of tasks per thread which are submitted
+     * ahead of the one whose results are being handled.
+     */
+    private static final int WINDOW_PER_THREAD = 8;
+
+    /**
+     * In parallel mode, the number of throws a task buffers before it waits
+     * for them to be handled.
+     */
+    private static final int MAX_BUFFERED = 1 << 15;
+
+    /**
+     * Why <tt>generate</tt> stopped.
+     */
+    public enum StopReason
+    {
+        /**
+         * All siteswaps were generated.
+         */
+        COMPLETED,
+
+        /**
+         * The handler returned <tt>false</tt>.
+         */
+        HANDLER,
+
+        /**
+         * The maximum number of results was reached, see
+         * <tt>setMaxResults</tt>.
+         */
+        MAX_RESULTS,
+
+        /**
+         * The time limit passed, see <tt>setTimeout</tt> (or the deadline of
+         * the cancellation token).
+         */
+        TIMEOUT,
+
+        /**
+         * The cancellation token was cancelled, see
+         * <tt>setCancellation</tt>.
+         */
+        CANCELLED
+    }
+
+    /**
+     * The maximum number of siteswaps to handle in a call to
+     * <tt>generate</tt>, or 0 for no limit.
+     */
+    private long max_results = 0;
+
+    /**
+     * The time limit of a call to <tt>generate</tt> in milliseconds, or -1
+     * for none.
+     */
+    private long timeout = -1;
+
+    /**
+     * The token for stopping <tt>generate</tt> from outside, if any.
+     */
+    private Cancellation cancellation;
+
+    /**
+     * The token which stops the current call to <tt>generate</tt>. It is
+     * cancelled when any of the reasons to stop occurs.
+     */
+    private Cancellation stop;
+
+    /**
+     * The number of siteswaps handled in the current call to
+     * <tt>generate</tt>.
+     */
+    private long results;
+
+    private StopReason stop_reason = StopReason.COMPLETED;
+
     public Generator(int balls, int max_height)
     {
         this(   balls,
@@ -49,121 +192,1141 @@ public class Generator
         this.handler = handler;
     }
 
+    /**
+     * Sets a handler which receives the throw heights of the generated
+     * siteswaps, in normalized form, instead of <tt>Siteswap</tt> instances.
+     * While it is set (i.e. non-null), the <tt>SiteswapHandler</tt> is not
+     * used.
+     */
+    public void setSequenceHandler(SequenceHandler sequence_handler)
+    {
+        this.sequence_handler = sequence_handler;
+    }
+
+    SequenceHandler getSequenceHandler()
+    {
+        return sequence_handler;
+    }
+
+    /**
+     * Sets a handler which receives the generated siteswaps in batches of
+     * up to <tt>batch_size</tt>, in normalized form, instead of one by one.
+     * The siteswaps in a batch all have the same period. A new batch is
+     * used for every call, and the last ones of a call to <tt>generate</tt>
+     * are handled before it returns, even if they aren't full, unless the
+     * handler has returned <tt>false</tt>.
+     * While it is set (i.e. non-null), the <tt>SiteswapHandler</tt> is not
+     * used, but a <tt>SequenceHandler</tt> takes precedence over it.
+     */
+    public void setBatchHandler(BatchHandler batch_handler, int batch_size)
+    {
+        if (batch_size < 1)
+            throw new IllegalArgumentException("batch size must be positive: "
+                    + batch_size);
+        this.batch_handler = batch_handler;
+        this.batch_size = batch_size;
+    }
+
+    BatchHandler getBatchHandler()
+    {
+        return batch_handler;
+    }
+
+    /**
+     * Returns the batch size last set with <tt>setBatchHandler</tt>, or 0
+     * if it was never called.
+     */
+    int getBatchSize()
+    {
+        return batch_size;
+    }
+
+    /**
+     * Sets whether to generate every siteswap only once. By default a
+     * siteswap with period <tt>p</tt> is generated up to <tt>p</tt> times,
+     * once from each state it passes through, and it is up to the handler to
+     * drop the duplicates. In canonical mode only one of those cycles is
+     * followed (see <tt>CycleEnumerator.setCanonical</tt>), which also cuts
+     * the search down by about a factor of <tt>p</tt>, and <tt>generate</tt>
+     * returns the number of distinct siteswaps.
+     */
+    public void setCanonical(boolean canonical)
+    {
+        this.canonical = canonical;
+    }
+
+    /**
+     * Sets a constraint which the generated siteswaps must satisfy, or
+     * <tt>null</tt> for none. It is checked during the search (see
+     * <tt>CycleEnumerator.setConstraint</tt>), so that branches which can't
+     * lead to a siteswap satisfying it are cut off early.
+     */
+    public void setConstraint(Constraint constraint)
+    {
+        this.constraint = constraint;
+    }
+
+    /**
+     * Sets the graph to search, instead of the one <tt>StateGraph.get</tt>
+     * returns (e.g. one from <tt>StateGraph.buildRanked</tt>). It must have
+     * the same number of balls and max height as the generator.
+     */
+    public void setGraph(StateGraph graph)
+    {
+        if (graph.getBalls() != balls || graph.getMaxHeight() != max_height)
+            throw new IllegalArgumentException("graph parameters don't match");
+        this.graph = graph;
+    }
+
+    /**
+     * Sets whether to search the state graph without building it, with an
+     * <tt>ImplicitCycleEnumerator</tt>. This takes no memory for the graph,
+     * so it works for max heights (up to 63) for which the graph is too big
+     * to build, but the search can only be pruned with a bound on the
+     * distances, and it always runs on the thread calling
+     * <tt>generate</tt>. In canonical mode the same siteswaps are found,
+     * but in a different order.
+     */
+    public void setImplicit(boolean implicit)
+    {
+        this.implicit = implicit;
+    }
+
+    /**
+     * Sets the number of threads to generate with. With more than one
+     * thread the search is split by root and by the first edges of the path
+     * and run on a <tt>ForkJoinPool</tt>. The handler is still called only
+     * from the thread calling <tt>generate</tt>, and in the same order as
+     * with a single thread.
+     */
+    public void setParallelism(int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive: "
+                    + parallelism);
+        if (pool != null && parallelism != this.parallelism)
+        {
+            pool.shutdown();
+            pool = null;
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the maximum number of siteswaps to handle in a call to
+     * <tt>generate</tt>, or 0 for no limit.
+     */
+    public void setMaxResults(long max_results)
+    {
+        if (max_results < 0)
+            throw new IllegalArgumentException("negative limit: "
+                    + max_results);
+        this.max_results = max_results;
+    }
+
+    /**
+     * Sets a time limit in milliseconds for each call to <tt>generate</tt>,
+     * or -1 for none.
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets a token which stops <tt>generate</tt> when it is cancelled (from
+     * any thread), or <tt>null</tt> for none.
+     */
+    public void setCancellation(Cancellation cancellation)
+    {
+        this.cancellation = cancellation;
+    }
+
+    Cancellation getCancellation()
+    {
+        return cancellation;
+    }
+
+    /**
+     * Returns the number of siteswaps handled in the last call to
+     * <tt>generate</tt>.
+     */
+    public long getResultCount()
+    {
+        return results;
+    }
+
+    /**
+     * Returns why the last call to <tt>generate</tt> stopped.
+     */
+    public StopReason getStopReason()
+    {
+        return stop_reason;
+    }
+
     /**
      * Look for cycles in the graph with period <tt>period</tt>, translate them
      * to siteswaps and handle them with <tt>handler</tt>
+     *
+     * Stops early if the handler returns <tt>false</tt>, or when the limits
+     * set with <tt>setMaxResults</tt>, <tt>setTimeout</tt> or
+     * <tt>setCancellation</tt> say so, in which case the siteswaps handled
+     * so far are the partial results and <tt>getStopReason</tt> tells why
+     * it stopped.
      */
-
     public int generate(int period)
     {
-        //we generate paths with length 'period' and check whether the first and
-        //last node is the same. this gives us cycles of length period-1
-        period++;
-        if (graph == null)
-            graph = new StateGraph(balls, max_height);
-        int patterns = 0;
+        return generate(period, period);
+    }
+
+    /**
+     * Like <tt>generate(int)</tt> for each period from
+     * <tt>period_from</tt> to <tt>period_to</tt>, but in a single search:
+     * whenever a path gets back to its root with a length in the range, the
+     * cycle is handled, and the search goes on extending the path (see
+     * <tt>CycleEnumerator</tt>). This way the paths shared by cycles of
+     * different lengths are only followed once, instead of once for each
+     * period.
+     *
+     * The siteswaps of the different periods are handled mixed together,
+     * in the order of the search, so a handler which needs them by period
+     * (like <tt>CorpusWriter</tt>) should use <tt>generate(int)</tt>.
+     * The limits apply to the whole range.
+     */
+    public int generate(int period_from, int period_to)
+    {
+        period_from = Math.max(1, period_from);
+        batches = batch_handler == null || period_to < period_from
+                ? null : new SiteswapBatch[period_to + 1];
+        int patterns = search(period_from, period_to);
+        // a handler which asked to stop doesn't get any more batches
+        if (batches != null && stop_reason != StopReason.HANDLER)
+        {
+            for (SiteswapBatch batch : batches)
+            {
+                if (batch != null && batch.size() > 0
+                        && !batch_handler.handle(batch))
+                {
+                    stop_reason = StopReason.HANDLER;
+                    break;
+                }
+            }
+        }
+        batches = null;
+        return patterns;
+    }
+
+    /**
+     * Does the work of <tt>generate</tt>, except for handling the last
+     * batches.
+     */
+    private int search(int period_from, int period_to)
+    {
+        stop_reason = StopReason.COMPLETED;
+        results = 0;
+        stop = new Cancellation(cancellation, timeout);
+        if (stop.isCancelled())
+        {
+            stopped();
+            return 0;
+        }
+
+        if (period_to < period_from)
+            return 0;
+        if (constraint != null)
+        {
+            int period = period_from;
+            while (period <= period_to && !constraint.acceptsPeriod(period))
+                period++;
+            if (period > period_to)
+                return 0;
+        }
+        if (sequence == null || sequence.length < period_to)
+            sequence = new int[period_to];
 
         if(DEBUG)
-            System.err.println("Generating cycles with period "+(period-1));
+            System.err.println("Generating cycles with periods "+period_from
+                    +" to "+period_to);
 
-        for (long root : graph.getNodes())
+        if (implicit)
+            return generateImplicit(period_from, period_to);
+        if (graph == null)
+            graph = StateGraph.get(balls, max_height);
+
+        if (parallelism > 1)
+            return generateParallel(period_from, period_to);
+
+        int patterns = 0;
+        CycleEnumerator enumerator
+                = new CycleEnumerator(graph, period_from, period_to);
+        enumerator.setCanonical(canonical);
+        enumerator.setConstraint(constraint);
+        enumerator.setPruning(true);
+        enumerator.setCancellation(stop);
+        for (int root = 0; root < graph.size(); root++)
         {
             if(DEBUG)
             {
                 System.err.print("Starting from root: ");
-                graph.print(root);
+                graph.printState(root);
+            }
+
+            enumerator.reset(root);
+            while (enumerator.next())
+            {
+                patterns++;
+                //cycle. restore the siteswap and handle it.
+                //dont handle siteswaps which turn out to have smaller period
+                //e.g. don't handle '3' as a siteswap with period >1
+                int period = enumerator.getLength();
+                if (Utils.normalize(enumerator.getThrows(), period, sequence)
+                        == period && !handleSequence(period))
+                    return patterns;
+            }
+            if (stop.isCancelled())
+            {
+                stopped();
+                return patterns;
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Does the work of <tt>generate</tt> with an
+     * <tt>ImplicitCycleEnumerator</tt>, from every state in turn.
+     */
+    private int generateImplicit(int period_from, int period_to)
+    {
+        int patterns = 0;
+        ImplicitCycleEnumerator enumerator = new ImplicitCycleEnumerator(
+                max_height, period_from, period_to);
+        enumerator.setCanonical(canonical);
+        enumerator.setConstraint(constraint);
+        enumerator.setCancellation(stop);
+        for (long root = ImplicitCycleEnumerator.getFirstState(balls, max_height);
+             root != -1;
+             root = ImplicitCycleEnumerator.getNextState(root, max_height))
+        {
+            enumerator.reset(root);
+            while (enumerator.next())
+            {
+                patterns++;
+                int period = enumerator.getLength();
+                if (Utils.normalize(enumerator.getThrows(), period, sequence)
+                        == period && !handleSequence(period))
+                    return patterns;
+            }
+            if (stop.isCancelled())
+            {
+                stopped();
+                return patterns;
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Sets the reason for stopping after <tt>stop</tt> was found cancelled,
+     * unless it is known already.
+     */
+    private void stopped()
+    {
+        if (stop_reason == StopReason.COMPLETED)
+            stop_reason = stop.isTimedOut()
+                    ? StopReason.TIMEOUT : StopReason.CANCELLED;
+    }
+
+    /**
+     * Does the work of <tt>generate</tt> on <tt>pool</tt>. The search from
+     * each root is split into tasks by the first edges of the path (see
+     * <tt>addTasks</tt>), which are submitted in the order of a sequential
+     * search while the calling thread handles their results in that order.
+     * Only a window of <tt>WINDOW_PER_THREAD</tt> tasks per thread is
+     * submitted at a time, each task buffers at most <tt>MAX_BUFFERED</tt>
+     * throws per run, and the results of a run are dropped once handled,
+     * so the memory used doesn't grow with the number of results.
+     */
+    private int generateParallel(int period_from, int period_to)
+    {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+
+        int window = parallelism * WINDOW_PER_THREAD;
+        ArrayDeque<CycleTask> pending = new ArrayDeque<CycleTask>();
+        ArrayDeque<CycleTask> running = new ArrayDeque<CycleTask>();
+        int next_root = 0;
+        int patterns = 0;
+        while (true)
+        {
+            while (running.size() < window)
+            {
+                if (pending.isEmpty() && next_root < graph.size())
+                    addTasks(period_from, period_to, next_root++, pending);
+                if (pending.isEmpty())
+                    break;
+                CycleTask task = pending.poll();
+                pool.execute(task);
+                running.add(task);
+            }
+            if (running.isEmpty())
+                break;
+
+            CycleTask task = running.poll();
+            task.join();
+            if (stop.isCancelled())
+            {
+                // the tasks still running see this and end shortly, there
+                // is no need to wait for them
+                stopped();
+                return patterns;
+            }
+            patterns += task.replay();
+            if (!task.isFinished())
+            {
+                // go on with the same search before any later one
+                task.reinitialize();
+                pool.execute(task);
+                running.addFirst(task);
+            }
+        }
+        if (stop.isCancelled())
+            stopped();
+        return patterns;
+    }
+
+    /**
+     * Adds the tasks for the search from <tt>root</tt> to <tt>tasks</tt>,
+     * in the order of a sequential search. Short prefixes of the path are
+     * extended by one edge in each possible way, down to
+     * <tt>SPLIT_DEPTH</tt>, and each prefix which isn't extended is a task.
+     * The tasks share the distances to the root for pruning, which the
+     * first one to run computes.
+     */
+    private void addTasks(int period_from, int period_to, int root,
+                          ArrayDeque<CycleTask> tasks)
+    {
+        Distances distances = new Distances(root, period_to);
+        addTasks(period_from, period_to, root, new int[0], distances, tasks);
+    }
+
+    private void addTasks(int period_from, int period_to, int root,
+                          int[] prefix, Distances distances,
+                          ArrayDeque<CycleTask> tasks)
+    {
+        int depth = prefix.length;
+        int node = depth == 0
+                ? root : graph.getEdgeTarget(prefix[depth - 1]);
+        // a prefix which is a cycle itself is not split, as it has to be
+        // found before the longer cycles starting with it
+        if (depth < SPLIT_DEPTH && period_to - depth > MIN_SPLIT_LENGTH
+                && !(node == root && depth >= period_from))
+        {
+            int end = graph.getEdgeEnd(node);
+            for (int edge = graph.getFirstEdge(node); edge < end; edge++)
+            {
+                int[] p = Arrays.copyOf(prefix, depth + 1);
+                p[depth] = edge;
+                addTasks(period_from, period_to, root, p, distances, tasks);
             }
-            LinkedList<Long> path = new LinkedList<Long>();
-            long node = root;
-            while(path.size() < period)
+            return;
+        }
+        tasks.add(new CycleTask(period_from, period_to, root, prefix,
+                                distances, stop));
+    }
+
+    /**
+     * Returns a lazy stream of the siteswaps with period <tt>period</tt>, as
+     * <tt>generate</tt> would find them (so with the constraint and
+     * canonical mode set at the time of the call). Nothing is searched
+     * until the stream is consumed, and the search stops when it stops
+     * being consumed, e.g. after a <tt>limit</tt> or <tt>findFirst</tt>.
+     *
+     * A parallel stream is split by root and then by the untried edges of
+     * the search paths, and runs on the common <tt>ForkJoinPool</tt> rather
+     * than on the pool of <tt>setParallelism</tt>. The order of the stream
+     * is the order of <tt>generate</tt> only for sequential streams.
+     */
+    public Stream<Siteswap> stream(int period)
+    {
+        return sequences(period).map(new Function<int[], Siteswap>()
+        {
+            @Override
+            public Siteswap apply(int[] sequence)
+            {
+                return new Siteswap(sequence, true);
+            }
+        });
+    }
+
+    /**
+     * Like <tt>stream</tt>, but returns the throw heights of the siteswaps,
+     * in normalized form, in a new array for each siteswap.
+     */
+    public Stream<int[]> sequences(int period)
+    {
+        if (period < 1 || (constraint != null && !constraint.acceptsPeriod(period)))
+            return Stream.empty();
+        if (graph == null)
+            graph = StateGraph.get(balls, max_height);
+
+        int[] roots = new int[graph.size()];
+        for (int root = 0; root < roots.length; root++)
+            roots[root] = root;
+        return StreamSupport.stream(
+                new CycleSpliterator(graph, period, canonical, constraint,
+                                     roots),
+                false);
+    }
+
+    /**
+     * Hands the full batch for <tt>period</tt> to <tt>batch_handler</tt>,
+     * and starts a new one.
+     * @return what the handler returned
+     */
+    private boolean handleBatch(int period)
+    {
+        SiteswapBatch full = batches[period];
+        batches[period] = null;
+        return batch_handler.handle(full);
+    }
+
+    /**
+     * Handles the siteswap with the first <tt>period</tt> throw heights in
+     * <tt>sequence</tt>, which are in normalized form.
+     * @return <tt>false</tt> if the search must stop, because the handler
+     * asked to or because the maximum number of results was reached
+     */
+    private boolean handleSequence(int period)
+    {
+        boolean more;
+        if (sequence_handler != null)
+            more = sequence_handler.handle(sequence, period);
+        else if (batch_handler != null)
+        {
+            if (batches[period] == null)
+                batches[period] = new SiteswapBatch(period, batch_size);
+            more = batches[period].add(sequence) || handleBatch(period);
+        }
+        else
+            more = handler.handle(new Siteswap(Arrays.copyOf(sequence, period)));
+
+        results++;
+        if (!more)
+            stop_reason = StopReason.HANDLER;
+        else if (max_results > 0 && results >= max_results)
+            stop_reason = StopReason.MAX_RESULTS;
+        else
+            return true;
+
+        stop.cancel();
+        return false;
+    }
+
+    /**
+     * The distances to a root, which the tasks for the root share. They are
+     * computed by the first task which needs them.
+     */
+    private class Distances
+    {
+        private final int root;
+        private final int period_to;
+        private byte[] distances;
+        private boolean computed = false;
+
+        Distances(int root, int period_to)
+        {
+            this.root = root;
+            this.period_to = period_to;
+        }
+
+        synchronized byte[] get()
+        {
+            if (!computed && period_to - 1 < StateGraph.UNREACHED)
+                distances = graph.getDistancesTo(
+                        root, canonical ? root : 0, period_to - 1);
+            computed = true;
+            return distances;
+        }
+    }
+
+    /**
+     * Finds the cycles which start at <tt>root</tt> and continue with the
+     * edges in <tt>prefix</tt>, with lengths from <tt>period_from</tt> to
+     * <tt>period_to</tt>. The cycles found are normalized right away, and
+     * those which don't turn out to have a smaller period are kept until
+     * <tt>replay</tt> passes them to the handler, so that they are handled
+     * in the same order as in a sequential run.
+     *
+     * A run of the task stops once it has buffered <tt>MAX_BUFFERED</tt>
+     * throws, keeping its enumerator, so that the memory a task uses is
+     * bounded even if the subtree it searches is huge. It is then run again
+     * (after <tt>reinitialize</tt>) once its results have been handled.
+     */
+    private class CycleTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int period_from;
+        private final int period_to;
+        private final int root;
+        private final int[] prefix;
+        private final Distances distances;
+
+        /**
+         * The token which stops the call to <tt>generate</tt> the task is
+         * part of.
+         */
+        private final Cancellation stop;
+
+        /**
+         * The search, kept between runs until it is over.
+         */
+        private CycleEnumerator enumerator;
+        private int[] normalized;
+        private boolean finished = false;
+
+        /**
+         * The normalized throw heights of the siteswaps found, one after
+         * another, and the period of each.
+         */
+        private int[] cycles;
+        private int[] periods;
+        private int count;
+
+        /**
+         * The number of cycles found, including those dropped after
+         * normalizing.
+         */
+        private int found;
+
+        CycleTask(int period_from, int period_to, int root, int[] prefix,
+                  Distances distances, Cancellation stop)
+        {
+            this.period_from = period_from;
+            this.period_to = period_to;
+            this.root = root;
+            this.prefix = prefix;
+            this.distances = distances;
+            this.stop = stop;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (stop.isCancelled())
             {
-                path.add(node);
-                node = graph.getNextChild(node, 0); //always get the first child
+                finished = true;
+                return;
             }
 
-            while(path != null)
+            if (enumerator == null)
             {
-                if (path.get(0) == path.get(period-1))
+                enumerator = new CycleEnumerator(graph, period_from, period_to);
+                enumerator.setCanonical(canonical);
+                enumerator.setConstraint(constraint);
+                enumerator.setCancellation(stop);
+                enumerator.reset(root, distances.get());
+                for (int edge : prefix)
                 {
-                    //cycle. restore the siteswap and handle it.
-                    int[] siteswap = new int[period-1];
-                    for (int i = 0; i<period-1; i++)
+                    if (!enumerator.push(edge))
                     {
-                        int height = graph.getLabel(path.get(i), path.get(i+1));
-                        siteswap[i] = height;
+                        finished = true;
+                        return;
                     }
-                    patterns++;
+                }
+                normalized = new int[period_to];
+            }
 
-                    Siteswap s = new Siteswap(siteswap);
-                    //dont handle siteswaps which turn out to have smaller period
-                    //e.g. don't handle '3' as a siteswap with period >1
-                    if(s.getSequence().length == period-1) 
-                        handler.handle(s);
+            if (cycles == null)
+            {
+                cycles = new int[period_to * 16];
+                periods = new int[16];
+            }
+            int size = 0;
+            while (size < MAX_BUFFERED)
+            {
+                if (!enumerator.next())
+                {
+                    finished = true;
+                    enumerator = null;
+                    break;
                 }
+                found++;
+                int period = enumerator.getLength();
+                if (Utils.normalize(enumerator.getThrows(), period, normalized)
+                        < period)
+                    continue;
 
-                path = getNextPath(path, period);
+                if (size + period > cycles.length)
+                    cycles = Arrays.copyOf(cycles,
+                            Math.max(cycles.length * 2, size + period));
+                if (count == periods.length)
+                    periods = Arrays.copyOf(periods, count * 2);
+                System.arraycopy(normalized, 0, cycles, size, period);
+                size += period;
+                periods[count++] = period;
             }
         }
-        return patterns;
+
+        /**
+         * Checks whether the search of the task is over, or whether it
+         * stopped because its buffer was full and has to be run again after
+         * <tt>replay</tt>.
+         */
+        boolean isFinished()
+        {
+            return finished;
+        }
+
+        /**
+         * Handles the cycles found by the last run of this task, in order,
+         * and releases them. Stops when the handler or the limits say so.
+         * @return the number of cycles
+         */
+        int replay()
+        {
+            int offset = 0;
+            for (int i = 0; i < count; i++)
+            {
+                int period = periods[i];
+                System.arraycopy(cycles, offset, sequence, 0, period);
+                offset += period;
+                if (!handleSequence(period))
+                    break;
+            }
+            int ret = found;
+            found = 0;
+            count = 0;
+            if (finished)
+            {
+                cycles = null;
+                periods = null;
+            }
+            return ret;
+        }
     }
 
-    private LinkedList<Long> getNextPath(LinkedList<Long> path, int period)
+    /**
+     * A spliterator over the normalized throw heights of the siteswaps with
+     * a given period. Its work is a queue of searches, each from a root and
+     * possibly with a fixed prefix (see <tt>CycleEnumerator.push</tt>).
+     * It is split by handing off half of the queue, or, when only the
+     * search it is running is left, the edges that search hasn't tried yet
+     * at its shallowest level (see <tt>CycleEnumerator.split</tt>).
+     *
+     * The sizes of the searches are unknown and very uneven, so the size
+     * estimate is only cut by a quarter on each split. That way the
+     * streams framework splits a lot more than the usual four parts per
+     * thread, and the threads which finish early find work left.
+     */
+    private static class CycleSpliterator
+        implements Spliterator<int[]>
     {
-        if (path.size() < 2)
-            return null;
+        private final StateGraph graph;
+        private final int period;
+        private final boolean canonical;
+        private final Constraint constraint;
+
+        /**
+         * The searches not started yet.
+         */
+        private final ArrayDeque<Search> searches = new ArrayDeque<Search>();
+
+        /**
+         * The search running, if any.
+         */
+        private CycleEnumerator enumerator;
+
+        /**
+         * The distances to the root of the search running, shared by the
+         * searches split off from it.
+         */
+        private byte[] enumerator_distances;
+
+        private int[] normalized;
+        private long estimate = Long.MAX_VALUE;
+
+        CycleSpliterator(StateGraph graph, int period, boolean canonical,
+                         Constraint constraint, int[] roots)
+        {
+            this.graph = graph;
+            this.period = period;
+            this.canonical = canonical;
+            this.constraint = constraint;
+            for (int root : roots)
+                searches.add(new Search(root, new int[0], null));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super int[]> action)
+        {
+            if (normalized == null)
+                normalized = new int[period];
+
+            while (true)
+            {
+                if (enumerator != null)
+                {
+                    while (enumerator.next())
+                    {
+                        // drop siteswaps which turn out to have a smaller
+                        // period, as generate does
+                        if (Utils.normalize(enumerator.getThrows(), period,
+                                            normalized) == period)
+                        {
+                            action.accept(normalized.clone());
+                            return true;
+                        }
+                    }
+                    enumerator = null;
+                    enumerator_distances = null;
+                }
+                if (!start())
+                    return false;
+            }
+        }
+
+        /**
+         * Starts the next search from the queue.
+         * @return <tt>false</tt> if the queue is empty
+         */
+        private boolean start()
+        {
+            while (!searches.isEmpty())
+            {
+                Search search = searches.poll();
+                int root = search.root;
+                byte[] d = search.distances;
+                if (d == null && period - 1 < StateGraph.UNREACHED)
+                    d = graph.getDistancesTo(root, canonical ? root : 0,
+                                             period - 1);
+
+                CycleEnumerator e = new CycleEnumerator(graph, period);
+                e.setCanonical(canonical);
+                e.setConstraint(constraint);
+                e.reset(root, d);
+                boolean ok = true;
+                for (int edge : search.prefix)
+                    if (!(ok = e.push(edge)))
+                        break;
+                if (ok)
+                {
+                    enumerator = e;
+                    enumerator_distances = d;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<int[]> trySplit()
+        {
+            CycleSpliterator ret = new CycleSpliterator(graph, period,
+                    canonical, constraint, new int[0]);
+            if (searches.size() > 1)
+            {
+                for (int n = searches.size() / 2; n > 0; n--)
+                    ret.searches.addFirst(searches.pollLast());
+            }
+            else
+            {
+                if (enumerator == null && !start())
+                    return null;
+                int[][] split = enumerator.split();
+                if (split.length == 0)
+                    return null;
+                int root = enumerator.getRoot();
+                for (int[] prefix : split)
+                    ret.searches.add(
+                            new Search(root, prefix, enumerator_distances));
+            }
 
-        long pop = path.getLast();
-        path.removeLast();
-        long pop2 = path.getLast();
-        long next_child = graph.getNextChild(pop2, pop);
-        if (next_child == 0) //it's the last child, backtrack
-            return getNextPath(path, period);
+            estimate -= estimate / 4;
+            ret.estimate = estimate;
+            return ret;
+        }
 
-        long node = next_child;
-        while(path.size() < period)
+        @Override
+        public long estimateSize()
         {
-            path.add(node);
-            node = graph.getNextChild(node, 0); //get the first child all the way down
+            return estimate;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return NONNULL;
         }
-        return path;
     }
 
+    /**
+     * A search from <tt>root</tt> which starts with the edges in
+     * <tt>prefix</tt>, pruned with <tt>distances</tt> if they are known
+     * already.
+     */
+    private static class Search
+    {
+        final int root;
+        final int[] prefix;
+        final byte[] distances;
+
+        Search(int root, int[] prefix, byte[] distances)
+        {
+            this.root = root;
+            this.prefix = prefix;
+            this.distances = distances;
+        }
+    }
 
     public static void main(String[] args)
     {
-        if(args.length != 4)
+        int threads = 1;
+        Constraint constraint = null;
+        String corpus = null;
+        String trie = null;
+        boolean implicit = false;
+        boolean ranked = false;
+        long max_results = 0;
+        long timeout = -1;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-"))
         {
-            System.err.println("Usage: Generator <balls> <max-height> <period-from> <period-to>");
+            if ("-t".equals(args[i]) && i + 1 < args.length)
+            {
+                threads = Integer.parseInt(args[i + 1]);
+                i += 2;
+            }
+            else if ("-f".equals(args[i]) && i + 1 < args.length
+                    && Constraints.forName(args[i + 1]) != null)
+            {
+                constraint = Constraints.forName(args[i + 1]);
+                i += 2;
+            }
+            else if ("-o".equals(args[i]) && i + 1 < args.length)
+            {
+                corpus = args[i + 1];
+                i += 2;
+            }
+            else if ("-i".equals(args[i]) && i + 1 < args.length)
+            {
+                trie = args[i + 1];
+                i += 2;
+            }
+            else if ("-n".equals(args[i]) && i + 1 < args.length)
+            {
+                max_results = Long.parseLong(args[i + 1]);
+                i += 2;
+            }
+            else if ("-s".equals(args[i]) && i + 1 < args.length)
+            {
+                timeout = (long) (Double.parseDouble(args[i + 1]) * 1000);
+                i += 2;
+            }
+            else if ("-l".equals(args[i]))
+            {
+                implicit = true;
+                i++;
+            }
+            else if ("-r".equals(args[i]))
+            {
+                ranked = true;
+                i++;
+            }
+            else if ("-g".equals(args[i]) && i + 1 < args.length)
+            {
+                StateGraph.setCacheDirectory(Paths.get(args[i + 1]));
+                i += 2;
+            }
+            else
+            {
+                i = args.length; //print usage
+            }
+        }
+        if(args.length - i != 4)
+        {
+            System.err.println("Usage: Generator [-t <threads>] "
+                    + "[-f <'i1' | 'i2' | 'nikolaj'>] [-o <corpus-file> | -i <trie-file>] "
+                    + "[-n <max-results>] [-s <max-seconds>] "
+                    + "[-g <graph-cache-dir> | -l | -r] <balls> "
+                    + "<max-height> <period-from> <period-to>");
             return;
         }
-        int balls = Integer.parseInt(args[0]);
-        int max_height = Integer.parseInt(args[1]);
-        int period_from = Integer.parseInt(args[2]);
-        int period_to = Integer.parseInt(args[3]);
+        int balls = Integer.parseInt(args[i]);
+        int max_height = Integer.parseInt(args[i + 1]);
+        int period_from = Integer.parseInt(args[i + 2]);
+        int period_to = Integer.parseInt(args[i + 3]);
 
         Generator g = new Generator(balls, max_height);
-
-        final Set<Siteswap> siteswaps = new HashSet<Siteswap>();
-        // this is slow. for big sets, it is faster to save everything in a
-        // file and run 'sort | uniq' on it separately
-        SiteswapHandler handler = new SiteswapHandler() {
-            @Override
-            public boolean handle(Siteswap siteswap) {
-                siteswaps.add(siteswap);
-                return false;
+        g.setParallelism(threads);
+        g.setConstraint(constraint);
+        g.setImplicit(implicit);
+        if (ranked)
+        {
+            try
+            {
+                g.setGraph(StateGraph.buildRanked(balls, max_height, threads));
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("Invalid parameters: "+e.getMessage());
+                return;
             }
-        };
-        g.setHandler(handler);
+        }
+
+        // every siteswap is generated exactly once, so it can be printed
+        // right away instead of being collected for removing duplicates
+        g.setCanonical(true);
+        if (timeout >= 0)
+            g.setCancellation(new Cancellation(timeout));
 
+        if (trie != null)
+        {
+            writeTrie(g, trie, balls, max_height, period_from, period_to,
+                      max_results);
+            return;
+        }
+        if (corpus != null)
+        {
+            writeCorpus(g, corpus, balls, max_height, period_from, period_to,
+                        max_results);
+            return;
+        }
+
+        SiteswapWriter writer = new SiteswapWriter();
+        g.setSequenceHandler(writer);
+
+        try
+        {
+            generateAll(g, period_from, period_to, max_results, writer, false);
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        catch (UncheckedIOException e)
+        {
+            System.err.println("IOException: "+e.getCause());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Invalid parameters: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Generates the siteswaps with periods <tt>period_from</tt> to
+     * <tt>period_to</tt>, but at most <tt>max_results</tt> of them in all
+     * (0 for no limit), flushing <tt>out</tt> (if not <tt>null</tt>) after
+     * each period, or at the end. Tells on stderr if it stopped early.
+     * @param by_period whether the handler needs the siteswaps by period;
+     * if not they are all generated in a single search
+     */
+    private static void generateAll(Generator g, int period_from,
+                                    int period_to, long max_results,
+                                    Flushable out, boolean by_period)
+            throws IOException
+    {
+        if (!by_period)
+        {
+            g.setMaxResults(max_results);
+            g.generate(period_from, period_to);
+            if (out != null)
+                out.flush();
+            if (g.getStopReason() != StopReason.COMPLETED)
+                System.err.println("Stopped: " + g.getStopReason());
+            return;
+        }
+
+        long remaining = max_results;
         for(int period = period_from; period<=period_to; period++)
         {
             if(DEBUG)
                 System.err.println("Period="+period);
+            g.setMaxResults(remaining);
             g.generate(period);
+            if (out != null)
+                out.flush();
+
+            StopReason reason = g.getStopReason();
+            if (reason != StopReason.COMPLETED)
+            {
+                System.err.println("Stopped at period " + period + ": "
+                        + reason);
+                return;
+            }
+            if (max_results > 0)
+                remaining -= g.getResultCount();
+        }
+    }
+
+    /**
+     * Generates the siteswaps into a trie file (see
+     * <tt>SiteswapTrieWriter</tt>) instead of printing them.
+     */
+    private static void writeTrie(Generator g, String filename, int balls,
+                                  int max_height, int period_from,
+                                  int period_to, long max_results)
+    {
+        // closed by the writer too, but also if anything fails before that
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            SiteswapTrieWriter writer
+                    = new SiteswapTrieWriter(channel, balls, max_height);
+            g.setSequenceHandler(writer);
+            generateAll(g, period_from, period_to, max_results, null, false);
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        catch (UncheckedIOException e)
+        {
+            System.err.println("IOException: "+e.getCause());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Invalid parameters: "+e.getMessage());
         }
+    }
 
-        for(Siteswap s: siteswaps)
-            System.out.println(""+s);
+    /**
+     * Generates the siteswaps into a binary corpus file (see
+     * <tt>CorpusWriter</tt>) instead of printing them.
+     */
+    private static void writeCorpus(Generator g, String filename, int balls,
+                                    int max_height, int period_from,
+                                    int period_to, long max_results)
+    {
+        // closed by the writer too, but also if anything fails before that
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            CorpusWriter writer = new CorpusWriter(channel, balls, max_height,
+                                      Math.max(1, period_from),
+                                      Math.max(1, period_to));
+            g.setSequenceHandler(writer);
+            generateAll(g, period_from, period_to, max_results, null, true);
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        catch (UncheckedIOException e)
+        {
+            System.err.println("IOException: "+e.getCause());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Invalid parameters: "+e.getMessage());
+        }
     }
 }
 
@@ -0,0 +1,418 @@
+package net.mustelinae.siteswap;
+
+/**
+ * Like <tt>CycleEnumerator</tt>, but searches the state graph without
+ * building it: the children of a state are computed from its bits when the
+ * search gets to it, in the same order as <tt>StateGraph</tt> orders its
+ * edges (by increasing throw height). The memory used doesn't depend on the
+ * size of the graph, so this works for numbers of balls and max heights for
+ * which there are too many states to store, up to a max height of 63.
+ *
+ * The states are bit masks, as in <tt>StateGraph</tt>. Since they are not
+ * numbered, canonical mode (see <tt>setCanonical</tt>) uses the states
+ * themselves to choose the walk which represents a cycle: the root must be
+ * the smallest state on it, comparing them as unsigned numbers (with a max
+ * height of 63, position 63 is the sign bit). So every cycle is still
+ * reported exactly once, but from a different root than with a
+ * <tt>CycleEnumerator</tt>.
+ *
+ * Instead of the distances to the root, which would need the whole graph,
+ * the search is pruned with a lower bound on them: the balls in a state
+ * which haven't landed after <tt>k</tt> throws are still in the state
+ * <tt>k</tt> throws later, shifted by <tt>k</tt>, so the root can't be
+ * reached in fewer throws than it takes until they all fit into it.
+ */
+public class ImplicitCycleEnumerator
+{
+    /**
+     * The largest max height supported, the most positions which fit in a
+     * <tt>long</tt> state (bit 0 is never used).
+     */
+    public static final int MAX_HEIGHT = 63;
+
+    private final int max_height;
+
+    /**
+     * The bits of the positions 1 to <tt>max_height</tt>.
+     */
+    private final long positions;
+
+    /**
+     * The smallest and largest lengths of the walks.
+     */
+    private final int min_period;
+    private final int period;
+
+    /**
+     * The length of the last walk found.
+     */
+    private int length;
+
+    private long root;
+
+    /**
+     * <tt>states[d]</tt> is the state at depth <tt>d</tt> of the current
+     * path.
+     */
+    private final long[] states;
+
+    /**
+     * <tt>moves[d]</tt> has bit <tt>h</tt> set for each throw height
+     * <tt>h</tt> which is still to be tried from <tt>states[d]</tt>.
+     */
+    private final long[] moves;
+
+    /**
+     * <tt>heights[d]</tt> is the throw from <tt>states[d]</tt> to
+     * <tt>states[d+1]</tt>.
+     */
+    private final int[] heights;
+
+    /**
+     * In canonical mode, <tt>borders[d]</tt> is the first depth after 0 at
+     * which the path is at the root and from which it has had the same
+     * throw heights as from depth 0 up to depth <tt>d</tt>, or 0 if there
+     * is none. See <tt>CycleEnumerator.acceptsRotations</tt>.
+     */
+    private final int[] borders;
+
+    /**
+     * The depth at which to resume the search, or -1 if the search is over.
+     */
+    private int depth = -1;
+
+    private boolean canonical = false;
+    private Constraint constraint;
+
+    /**
+     * The lengths in the range which the constraint accepts.
+     */
+    private final boolean[] accepted;
+
+    private Cancellation cancellation;
+    private int steps = 0;
+
+    /**
+     * The token is checked every this many steps (a power of 2).
+     */
+    private static final int CANCELLATION_INTERVAL = 1 << 12;
+
+    /**
+     * Creates an enumerator of the walks with lengths from
+     * <tt>min_period</tt> to <tt>max_period</tt>, in the graph of the
+     * states with <tt>max_height</tt> positions.
+     */
+    public ImplicitCycleEnumerator(int max_height, int min_period,
+                                   int max_period)
+    {
+        if (max_height < 1 || max_height > MAX_HEIGHT)
+            throw new IllegalArgumentException("max height out of range: "
+                    + max_height);
+        if (min_period < 1 || max_period < min_period)
+            throw new IllegalArgumentException("invalid periods: "
+                    + min_period + " to " + max_period);
+        this.max_height = max_height;
+        positions = StateGraph.getPositions(max_height);
+        this.min_period = min_period;
+        this.period = max_period;
+        states = new long[period + 1];
+        moves = new long[period];
+        heights = new int[period];
+        borders = new int[period + 1];
+        accepted = new boolean[period + 1];
+    }
+
+    /**
+     * Sets whether to only report one walk of each cycle: the one which
+     * starts at the smallest state on it, and among its rotations which
+     * also start there, has the lexicographically largest throw heights.
+     *
+     * Must be called before <tt>reset</tt>.
+     */
+    public void setCanonical(boolean canonical)
+    {
+        this.canonical = canonical;
+    }
+
+    /**
+     * See <tt>CycleEnumerator.setConstraint</tt>.
+     */
+    public void setConstraint(Constraint constraint)
+    {
+        this.constraint = constraint;
+    }
+
+    /**
+     * See <tt>CycleEnumerator.setCancellation</tt>.
+     */
+    public void setCancellation(Cancellation cancellation)
+    {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Returns the first of the states with <tt>balls</tt> balls and
+     * <tt>max_height</tt> positions, in increasing (unsigned) order, or -1
+     * (which is not a state, since bit 0 is never set) if there are none.
+     * With <tt>getNextState</tt> it enumerates all states of the graph,
+     * e.g. to use them as roots.
+     */
+    public static long getFirstState(int balls, int max_height)
+    {
+        if (balls < 0 || balls > max_height || max_height > MAX_HEIGHT)
+            return -1;
+        return ((1L << balls) - 1) << 1;
+    }
+
+    /**
+     * Returns the smallest state larger (as an unsigned number) than
+     * <tt>state</tt> with the same number of balls and up to
+     * <tt>max_height</tt> positions, or -1 if there is none.
+     */
+    public static long getNextState(long state, int max_height)
+    {
+        if (state == 0)
+            return -1;
+        // the next bit mask with the same number of bits set, with the
+        // positions starting at bit 0
+        long bits = state >>> 1;
+        long lowest = bits & -bits;
+        long ripple = bits + lowest;
+        if (ripple < 0) // past position 63
+            return -1;
+        long next = ((((ripple ^ bits) >>> 2) / lowest) | ripple) << 1;
+        if ((next & ~StateGraph.getPositions(max_height)) != 0)
+            return -1;
+        return next;
+    }
+
+    /**
+     * Restarts the search from the state <tt>root</tt>.
+     */
+    public void reset(long root)
+    {
+        this.root = root;
+        states[0] = root;
+        moves[0] = getMoves(0, root);
+        borders[0] = 0;
+        depth = 0;
+
+        boolean any = false;
+        for (int p = min_period; p <= period; p++)
+            any |= accepted[p] = constraint == null
+                    || constraint.acceptsPeriod(p);
+        if (!any)
+            depth = -1;
+    }
+
+    /**
+     * Returns the throws which the search may make from <tt>state</tt> at
+     * depth <tt>d</tt>, as a bit mask of heights. At the last depth only
+     * the throw back to the root is possible, if there is one.
+     */
+    private long getMoves(int d, long state)
+    {
+        long shifted = StateGraph.shiftLeft(state);
+        if (d == period - 1)
+        {
+            if ((state & 2) == 0)
+                return shifted == root ? 1 : 0;
+            long diff = root ^ shifted;
+            if ((root & shifted) != shifted || Long.bitCount(diff) != 1)
+                return 0;
+            return diff;
+        }
+        if ((state & 2) == 0)
+            return 1; // only a 0
+        return ~shifted & positions;
+    }
+
+    /**
+     * Checks whether the search may put <tt>target</tt> at depth
+     * <tt>d+1</tt> of the path.
+     */
+    private boolean canFollow(long target, int d)
+    {
+        if (canonical && Long.compareUnsigned(target, root) < 0)
+            return false;
+        // the balls of 'target' which stay up after k throws must fit into
+        // the root by the time the period is over
+        int left = period - d - 1;
+        for (int k = 0; k <= left; k++)
+            if (((target >>> k) & ~1L & ~root) == 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * See <tt>CycleEnumerator.acceptsRotations</tt>.
+     */
+    private boolean acceptsRotations(int d, long target)
+    {
+        if (!canonical)
+            return true;
+        int border = borders[d];
+        if (border > 0)
+        {
+            int diff = heights[d] - heights[d - border];
+            if (diff > 0)
+                return false;
+            if (diff < 0)
+                border = 0;
+        }
+        if (border == 0 && target == root)
+            border = d + 1;
+        borders[d + 1] = border;
+        return true;
+    }
+
+    private boolean acceptsPrefix(int length)
+    {
+        if (constraint == null)
+            return true;
+        for (int p = Math.max(length, min_period); p <= period; p++)
+            if (accepted[p] && constraint.acceptsPrefix(heights, length, p))
+                return true;
+        return false;
+    }
+
+    /**
+     * Checks whether the path, which has just got back to the root with
+     * <tt>length</tt> throws, is a walk to report, and if so makes it the
+     * last walk found.
+     */
+    private boolean closes(int length)
+    {
+        if (!accepted[length])
+            return false;
+        if (constraint != null
+                && !Constraints.accepts(constraint, heights, length))
+            return false;
+        this.length = length;
+        return !canonical || isCanonical();
+    }
+
+    /**
+     * Advances to the next closed walk.
+     * @return <tt>true</tt> if a walk was found, in which case its throw
+     * heights are available from <tt>getThrows</tt>, and <tt>false</tt> if
+     * there are no more walks from the current root.
+     */
+    public boolean next()
+    {
+        int d = depth;
+        while (d >= 0)
+        {
+            if (cancellation != null
+                    && (++steps & (CANCELLATION_INTERVAL - 1)) == 0
+                    && cancellation.isCancelled())
+            {
+                depth = -1;
+                return false;
+            }
+
+            long m = moves[d];
+            if (m == 0)
+            {
+                d--;
+                continue;
+            }
+            int height = Long.numberOfTrailingZeros(m);
+            moves[d] = m & (m - 1);
+            heights[d] = height;
+
+            if (d == period - 1)
+            {
+                states[period] = root;
+                if (closes(period))
+                {
+                    depth = d;
+                    return true;
+                }
+                continue;
+            }
+
+            long target = StateGraph.set(StateGraph.shiftLeft(states[d]),
+                                         height) & ~1L;
+            if (!canFollow(target, d) || !acceptsPrefix(d + 1)
+                    || !acceptsRotations(d, target))
+                continue;
+            d++;
+            states[d] = target;
+            moves[d] = getMoves(d, target);
+            if (target == root && d >= min_period && closes(d))
+            {
+                // resume by extending the walk
+                depth = d;
+                return true;
+            }
+        }
+
+        depth = -1;
+        return false;
+    }
+
+    /**
+     * See <tt>CycleEnumerator.isCanonical</tt>.
+     */
+    private boolean isCanonical()
+    {
+        for (int i = 1; i < length; i++)
+        {
+            if (states[i] == root && compareRotation(i) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int compareRotation(int shift)
+    {
+        int j = shift;
+        for (int i = 0; i < length; i++)
+        {
+            int diff = heights[j] - heights[i];
+            if (diff != 0)
+                return diff;
+            if (++j == length)
+                j = 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the throw heights of the last walk found, in the first
+     * <tt>getLength()</tt> entries. The array is reused by subsequent calls
+     * to <tt>next</tt>.
+     */
+    public int[] getThrows()
+    {
+        return heights;
+    }
+
+    /**
+     * Returns the length of the last walk found.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the state at depth <tt>d</tt> of the last walk found, with
+     * <tt>0 &lt;= d &lt;= getLength()</tt>.
+     */
+    public long getState(int d)
+    {
+        return states[d];
+    }
+
+    public long getRoot()
+    {
+        return root;
+    }
+
+    public int getMaxHeight()
+    {
+        return max_height;
+    }
+}
@@ -0,0 +1,95 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A minimal open-addressing hash set of <tt>long</tt>s, without boxing.
+ */
+public class LongHashSet
+{
+    /**
+     * The keys. 0 marks an empty slot, whether 0 itself is in the set is
+     * kept in <tt>has_zero</tt>.
+     */
+    private long[] keys;
+    private boolean has_zero = false;
+    private int size = 0;
+
+    public LongHashSet()
+    {
+        this(16);
+    }
+
+    public LongHashSet(int expected_size)
+    {
+        int capacity = 16;
+        while (capacity < expected_size * 2)
+            capacity <<= 1;
+        keys = new long[capacity];
+    }
+
+    /**
+     * Adds <tt>key</tt> to the set.
+     * @return <tt>true</tt> if it wasn't in the set already
+     */
+    public boolean add(long key)
+    {
+        if (key == 0)
+        {
+            if (has_zero)
+                return false;
+            has_zero = true;
+            size++;
+            return true;
+        }
+
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int slot = LongIntMap.hash(key) & mask;
+        while (keys[slot] != 0)
+        {
+            if (keys[slot] == key)
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        return true;
+    }
+
+    public boolean contains(long key)
+    {
+        if (key == 0)
+            return has_zero;
+
+        int mask = keys.length - 1;
+        for (int slot = LongIntMap.hash(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+                return true;
+        }
+        return false;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old_keys = keys;
+        keys = new long[capacity];
+
+        int mask = capacity - 1;
+        for (long key : old_keys)
+        {
+            if (key == 0)
+                continue;
+            int slot = LongIntMap.hash(key) & mask;
+            while (keys[slot] != 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+        }
+    }
+}
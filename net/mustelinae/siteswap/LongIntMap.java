@@ -0,0 +1,117 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A minimal open-addressing hash map from <tt>long</tt> keys to non-negative
+ * <tt>int</tt> values. Used to map juggling states to their dense indices
+ * without boxing every state into a <tt>Long</tt>.
+ */
+public class LongIntMap
+{
+    /**
+     * The keys. A slot is used iff the corresponding entry in
+     * <tt>values</tt> is non-zero.
+     */
+    private long[] keys;
+
+    /**
+     * The values, offset by one so that 0 can mark an empty slot (this way
+     * any <tt>long</tt>, including 0, can be used as a key).
+     */
+    private int[] values;
+
+    private int size = 0;
+
+    public LongIntMap()
+    {
+        this(16);
+    }
+
+    public LongIntMap(int expected_size)
+    {
+        int capacity = 16;
+        while (capacity < expected_size * 2)
+            capacity <<= 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Returns the value associated with <tt>key</tt>, or -1 if there is none.
+     */
+    public int get(long key)
+    {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; values[slot] != 0; slot = (slot + 1) & mask)
+        {
+            if (keys[slot] == key)
+                return values[slot] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Associates <tt>value</tt> (which must be non-negative) with
+     * <tt>key</tt>, replacing any previous value.
+     */
+    public void put(long key, int value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value: " + value);
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != 0)
+        {
+            if (keys[slot] == key)
+            {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value + 1;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old_keys = keys;
+        int[] old_values = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < old_keys.length; i++)
+        {
+            if (old_values[i] == 0)
+                continue;
+            int slot = hash(old_keys[i]) & mask;
+            while (values[slot] != 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = old_keys[i];
+            values[slot] = old_values[i];
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3. States are sparse bit patterns, so the
+     * bits need to be mixed well before masking.
+     */
+    static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,408 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Filters a file of siteswaps (one on a line) by a <tt>Constraint</tt> or
+ * by <tt>SiteswapPredicate</tt>s, for files too big for <tt>Filter</tt>'s
+ * line-by-line reading.
+ *
+ * The file is memory-mapped and split at line boundaries into chunks, which
+ * are scanned in parallel on a <tt>ForkJoinPool</tt>. The throw heights of
+ * each line are parsed straight from the mapped bytes into a reused array,
+ * normalized and checked, and the byte ranges of the matching lines are
+ * recorded. The ranges are then written out, in the order of the input, as
+ * slices of the mapped buffers, so the matching lines are never copied.
+ *
+ * Lines are selected the same way <tt>Filter</tt> selects them: a line
+ * matches if it is a valid siteswap (in the 0-9a-zA-Z notation) and its
+ * normalized form satisfies the constraint. The matching lines are written
+ * exactly as they are in the input (so '\r\n' line endings are kept).
+ *
+ * With predicates, each of them selects the lines for its own output, all
+ * in the same pass over the file. Since predicates (like the ones
+ * <tt>Predicates.and</tt> makes) may not be thread-safe, every chunk gets
+ * its own instances from a <tt>Supplier</tt>.
+ */
+public class MappedFilter
+{
+    /**
+     * The largest chunk to map at once. <tt>FileChannel.map</tt> can't map
+     * more than 2GB.
+     */
+    private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * How many chunks to make per thread, so that threads which finish
+     * early have something left to do.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The most buffers to pass to a single gathering write.
+     */
+    private static final int MAX_WRITE_BUFFERS = 1024;
+
+    /**
+     * The constraint the lines must satisfy, or <tt>null</tt> if they are
+     * selected by <tt>predicates</tt>.
+     */
+    private final Constraint constraint;
+
+    /**
+     * Makes the predicates which select the lines for each output, or
+     * <tt>null</tt> if there is a <tt>constraint</tt>.
+     */
+    private final Supplier<SiteswapPredicate[]> predicates;
+
+    private final int parallelism;
+
+    public MappedFilter(Constraint constraint)
+    {
+        this(constraint, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MappedFilter(Constraint constraint, int parallelism)
+    {
+        this.constraint = constraint;
+        this.predicates = null;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Creates a filter which selects the lines for the i-th output with the
+     * i-th of the predicates <tt>predicates</tt> supplies. It is called once
+     * for each chunk of the file, and must return new instances each time
+     * unless they are thread-safe.
+     */
+    public MappedFilter(Supplier<SiteswapPredicate[]> predicates)
+    {
+        this(predicates, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MappedFilter(Supplier<SiteswapPredicate[]> predicates,
+                        int parallelism)
+    {
+        this.constraint = null;
+        this.predicates = predicates;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Writes the lines of <tt>input</tt> which match to <tt>outputs</tt>:
+     * with a constraint there must be a single output, with predicates one
+     * for each predicate.
+     * @return the number of lines written, to all outputs together
+     */
+    public long filter(Path input, GatheringByteChannel... outputs)
+            throws IOException
+    {
+        // the first chunk uses these, so they are not made just for counting
+        SiteswapPredicate[] first = constraint != null
+                ? null : predicates.get();
+        int expected = constraint != null ? 1 : first.length;
+        if (outputs.length != expected)
+            throw new IllegalArgumentException("expected " + expected
+                    + " outputs, got " + outputs.length);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ))
+        {
+            long[] bounds = split(channel);
+            ChunkTask[] tasks = new ChunkTask[bounds.length - 1];
+            for (int i = 0; i < tasks.length; i++)
+            {
+                tasks[i] = new ChunkTask(channel, bounds[i], bounds[i + 1],
+                                         outputs.length);
+                if (i == 0)
+                    tasks[i].tests = first;
+                pool.execute(tasks[i]);
+            }
+
+            long lines = 0;
+            for (int i = 0; i < tasks.length; i++)
+            {
+                tasks[i].join();
+                if (tasks[i].error != null)
+                    throw tasks[i].error;
+                lines += tasks[i].write(outputs);
+                tasks[i] = null;
+            }
+            return lines;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the file into chunks which end right after a newline (or at
+     * the end of the file).
+     * @return the offsets where the chunks start, followed by the size of
+     * the file
+     */
+    private long[] split(FileChannel channel)
+            throws IOException
+    {
+        long size = channel.size();
+        long chunk_size = Math.max(1, size / ((long) parallelism * CHUNKS_PER_THREAD));
+        chunk_size = Math.min(chunk_size, MAX_CHUNK_SIZE);
+
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size)
+        {
+            long end = Math.min(size, start + chunk_size);
+            // move 'end' to just after the next newline
+            while (end < size)
+            {
+                buffer.clear();
+                int read = channel.read(buffer, end - 1);
+                int newline = -1;
+                for (int i = 0; i < read; i++)
+                {
+                    if (buffer.get(i) == '\n')
+                    {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline >= 0)
+                {
+                    end = end + newline;
+                    break;
+                }
+                end = Math.min(size, end + read);
+            }
+            if (end - start > Integer.MAX_VALUE)
+                throw new IOException("line too long");
+            bounds.add(end);
+            start = end;
+        }
+
+        long[] ret = new long[bounds.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = bounds.get(i);
+        return ret;
+    }
+
+    /**
+     * Returns the throw height the character <tt>c</tt> stands for (see
+     * <tt>Utils.charToInt</tt>), or -1 if it doesn't stand for one.
+     */
+    private static int toHeight(byte c)
+    {
+        if ('0' <= c && c <= '9')
+            return c - '0';
+        else if ('a' <= c && c <= 'z')
+            return c - 'a' + 10;
+        else if ('A' <= c && c <= 'Z')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Scans the lines in one chunk of the file.
+     */
+    private class ChunkTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        private MappedByteBuffer buffer;
+
+        /**
+         * The matching ranges (relative to the chunk) for each output, as
+         * pairs of start (inclusive) and end (exclusive) offsets.
+         * Consecutive matching lines are merged into a single range.
+         */
+        private int[][] ranges;
+        private final int[] range_counts;
+
+        /**
+         * The number of matching lines, for all outputs together.
+         */
+        private int lines = 0;
+
+        /**
+         * This chunk's own instances of the predicates, if any. Made in
+         * <tt>compute</tt> unless given.
+         */
+        private SiteswapPredicate[] tests;
+
+        private IOException error;
+
+        ChunkTask(FileChannel channel, long start, long end, int outputs)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            ranges = new int[outputs][64];
+            range_counts = new int[outputs];
+        }
+
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                     start, end - start);
+            }
+            catch (IOException e)
+            {
+                error = e;
+                return;
+            }
+            if (predicates != null && tests == null)
+                tests = predicates.get();
+
+            int[] heights = new int[64];
+            int[] normalized = new int[64];
+            int limit = buffer.limit();
+            int pos = 0;
+            while (pos < limit)
+            {
+                int line_start = pos;
+                int len = 0;
+                boolean ok = true;
+                for (; pos < limit; pos++)
+                {
+                    byte c = buffer.get(pos);
+                    if (c == '\n')
+                        break;
+                    // allow \r\n line endings
+                    if (c == '\r' && (pos + 1 == limit || buffer.get(pos + 1) == '\n'))
+                        continue;
+
+                    int height = toHeight(c);
+                    if (height < 0)
+                    {
+                        ok = false;
+                        continue;
+                    }
+                    if (len == heights.length)
+                    {
+                        heights = Arrays.copyOf(heights, len * 2);
+                        normalized = new int[len * 2];
+                    }
+                    heights[len++] = height;
+                }
+                if (pos < limit)
+                    pos++; //the newline
+
+                if (ok && len > 0)
+                    match(heights, len, normalized, line_start, pos);
+            }
+            tests = null;
+        }
+
+        /**
+         * Records the line from <tt>from</tt> to <tt>to</tt>, with throw
+         * heights <tt>heights</tt>, for the outputs it matches.
+         */
+        private void match(int[] heights, int len, int[] normalized,
+                           int from, int to)
+        {
+            len = Utils.normalize(heights, len, normalized);
+            if (!Utils.isValid(normalized, len))
+                return;
+            if (constraint != null)
+            {
+                if (Constraints.accepts(constraint, normalized, len))
+                    addRange(0, from, to);
+                return;
+            }
+
+            Siteswap siteswap
+                    = new Siteswap(Arrays.copyOf(normalized, len), true);
+            for (int i = 0; i < tests.length; i++)
+                if (tests[i].test(siteswap))
+                    addRange(i, from, to);
+        }
+
+        private void addRange(int output, int from, int to)
+        {
+            lines++;
+            int[] r = ranges[output];
+            int count = range_counts[output];
+            if (count > 0 && r[2 * count - 1] == from)
+            {
+                r[2 * count - 1] = to;
+                return;
+            }
+            if (2 * count == r.length)
+                r = ranges[output] = Arrays.copyOf(r, r.length * 2);
+            r[2 * count] = from;
+            r[2 * count + 1] = to;
+            range_counts[output]++;
+        }
+
+        /**
+         * Writes the matching ranges for each output to it, as slices of the
+         * mapped buffer.
+         * @return the number of lines written
+         */
+        long write(GatheringByteChannel[] outputs)
+                throws IOException
+        {
+            for (int output = 0; output < outputs.length; output++)
+                write(ranges[output], range_counts[output], outputs[output]);
+
+            buffer = null;
+            ranges = null;
+            return lines;
+        }
+
+        private void write(int[] ranges, int range_count,
+                           GatheringByteChannel output)
+                throws IOException
+        {
+            List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+            for (int i = 0; i < range_count; i++)
+            {
+                int from = ranges[2 * i];
+                int to = ranges[2 * i + 1];
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(from).limit(to);
+                slices.add(slice);
+
+                // the last line of the file may lack a newline
+                if (to == buffer.limit() && buffer.get(to - 1) != '\n')
+                    slices.add(ByteBuffer.wrap(new byte[] { '\n' }));
+
+                if (slices.size() >= MAX_WRITE_BUFFERS)
+                    writeFully(output, slices);
+            }
+            writeFully(output, slices);
+        }
+
+        private void writeFully(GatheringByteChannel output,
+                                List<ByteBuffer> slices)
+                throws IOException
+        {
+            ByteBuffer[] srcs = slices.toArray(new ByteBuffer[slices.size()]);
+            int first = 0;
+            while (first < srcs.length)
+            {
+                output.write(srcs, first, srcs.length - first);
+                while (first < srcs.length && !srcs[first].hasRemaining())
+                    first++;
+            }
+            slices.clear();
+        }
+    }
+}
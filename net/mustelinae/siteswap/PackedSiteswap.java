@@ -0,0 +1,119 @@
+package net.mustelinae.siteswap;
+
+/**
+ * Static methods which pack normalized siteswaps into primitive keys, for
+ * compact storage and exact comparison.
+ *
+ * A siteswap with at most <tt>NARROW_MAX_LENGTH</tt> throws, all of them
+ * at most <tt>NARROW_MAX_HEIGHT</tt>, fits in a single <tt>long</tt>: the
+ * throws are its hexadecimal digits, the first one being the most
+ * significant. The length is not stored; it is implied by the first throw
+ * being non-zero, which holds for every normalized sequence except [0]
+ * (the largest throw comes first, and only the sequence of zeros, which
+ * normalizes to [0], has no non-zero throw). So the keys are only unique
+ * for normalized sequences.
+ *
+ * Longer siteswaps, or ones with higher throws, are packed into several
+ * <tt>long</tt>s: the first holds the length, the rest hold the throws,
+ * eight bits each.
+ */
+public class PackedSiteswap
+{
+    public static final int NARROW_MAX_LENGTH = 16;
+    public static final int NARROW_MAX_HEIGHT = 15;
+
+    /**
+     * The highest throw the wide form supports.
+     */
+    public static final int WIDE_MAX_HEIGHT = 255;
+
+    /**
+     * Checks whether the sequence <tt>a[0..len-1]</tt> can be packed into a
+     * single <tt>long</tt>.
+     */
+    public static boolean isNarrow(int[] a, int len)
+    {
+        if (len > NARROW_MAX_LENGTH)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (a[i] < 0 || a[i] > NARROW_MAX_HEIGHT)
+                return false;
+        return true;
+    }
+
+    /**
+     * Packs the normalized sequence <tt>a[0..len-1]</tt> into a
+     * <tt>long</tt>. It must be narrow (see <tt>isNarrow</tt>).
+     */
+    public static long pack(int[] a, int len)
+    {
+        long key = 0;
+        for (int i = 0; i < len; i++)
+            key = (key << 4) | a[i];
+        return key;
+    }
+
+    /**
+     * Unpacks a key produced by <tt>pack</tt> into <tt>out</tt>, which must
+     * have room for <tt>NARROW_MAX_LENGTH</tt> elements.
+     * @return the length of the sequence
+     */
+    public static int unpack(long key, int[] out)
+    {
+        if (key == 0)
+        {
+            out[0] = 0;
+            return 1;
+        }
+
+        int len = (67 - Long.numberOfLeadingZeros(key)) / 4;
+        for (int i = len - 1; i >= 0; i--)
+        {
+            out[i] = (int) (key & 0xf);
+            key >>>= 4;
+        }
+        return len;
+    }
+
+    /**
+     * Returns the number of <tt>long</tt>s the wide form of a sequence with
+     * length <tt>len</tt> takes.
+     */
+    public static int wideSize(int len)
+    {
+        return 1 + (len + 7) / 8;
+    }
+
+    /**
+     * Packs the sequence <tt>a[0..len-1]</tt> into its wide form, in
+     * <tt>out[offset]</tt> to <tt>out[offset+wideSize(len)-1]</tt>. Throws
+     * must be between 0 and <tt>WIDE_MAX_HEIGHT</tt>.
+     * @return the number of <tt>long</tt>s written
+     */
+    public static int packWide(int[] a, int len, long[] out, int offset)
+    {
+        int size = wideSize(len);
+        out[offset] = len;
+        for (int w = 1; w < size; w++)
+            out[offset + w] = 0;
+        for (int i = 0; i < len; i++)
+        {
+            if (a[i] < 0 || a[i] > WIDE_MAX_HEIGHT)
+                throw new IllegalArgumentException("throw out of range: " + a[i]);
+            out[offset + 1 + i / 8] |= ((long) a[i]) << (8 * (i % 8));
+        }
+        return size;
+    }
+
+    /**
+     * Unpacks the wide form at <tt>in[offset]</tt> into <tt>out</tt>.
+     * @return the length of the sequence
+     */
+    public static int unpackWide(long[] in, int offset, int[] out)
+    {
+        int len = (int) in[offset];
+        for (int i = 0; i < len; i++)
+            out[i] = (int) ((in[offset + 1 + i / 8] >>> (8 * (i % 8))) & 0xff);
+        return len;
+    }
+}
@@ -0,0 +1,561 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+
+/**
+ * Static factory methods for <tt>SiteswapPredicate</tt>s, and a parser for
+ * the expressions <tt>Filter</tt> accepts.
+ *
+ * The predicates made by <tt>and</tt> and <tt>or</tt> stop at the first
+ * operand which decides the result, and they reorder their operands as
+ * they go so that this happens as early as possible. Every so often the
+ * operands are sorted by their measured cost divided by the fraction of
+ * the siteswaps they decide, which is the order with the least expected
+ * cost when the operands are independent. So it doesn't matter much in
+ * which order the operands of an expression are written, cheap and
+ * selective checks end up first. Because of this bookkeeping the
+ * predicates made by <tt>and</tt> and <tt>or</tt> must not be used by
+ * several threads at once.
+ *
+ * Expressions are made of these conditions:
+ * <pre>
+ *     i1, i2, nikolaj    the classes of Siteswap.isInteresting1 etc.
+ *     reversible         the reverse sequence is a valid siteswap
+ *     period OP n        compares the period with n
+ *     max OP n           compares the highest throw with n
+ *     balls OP n         compares the number of balls with n
+ *     has:S              has a throw with one of the heights in S
+ *     only:S             has only throws with heights in S
+ * </pre>
+ * where <tt>OP</tt> is one of <tt>&lt; &lt;= = != &gt;= &gt;</tt> and
+ * <tt>S</tt> is a list of heights in siteswap notation (e.g. <tt>has:ab</tt>
+ * for a throw of height 10 or 11). They are combined with <tt>!</tt>
+ * (not), <tt>&amp;</tt> (and), <tt>|</tt> (or) and parentheses, in the
+ * order of precedence, e.g. <tt>i2 &amp; !has:0 &amp; (max&lt;=7 | period=5)</tt>.
+ */
+public class Predicates
+{
+    /**
+     * The number of times an <tt>and</tt> or <tt>or</tt> is evaluated
+     * between reorderings of its operands.
+     */
+    private static final int REORDER_INTERVAL = 1024;
+
+    /**
+     * Only one in this many (a power of 2) evaluations of an operand are
+     * timed, since reading the clock costs about as much as a simple check.
+     */
+    private static final int TIMING_INTERVAL = 16;
+
+    /**
+     * Returns the predicate for a condition <tt>Filter</tt> accepts by
+     * name ('i1', 'i2' or 'nikolaj'), or <tt>null</tt> if <tt>name</tt> is
+     * not one of them.
+     */
+    public static SiteswapPredicate forName(String name)
+    {
+        if ("i1".equalsIgnoreCase(name))
+            return interesting1();
+        else if ("i2".equalsIgnoreCase(name))
+            return interesting2();
+        else if ("nikolaj".equalsIgnoreCase(name))
+            return nikolaj();
+        return null;
+    }
+
+    /**
+     * Parses an expression (see the class description).
+     * @throws IllegalArgumentException if <tt>expression</tt> is not valid
+     */
+    public static SiteswapPredicate parse(String expression)
+    {
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * Returns a predicate satisfied by the siteswaps which satisfy all of
+     * <tt>predicates</tt>.
+     */
+    public static SiteswapPredicate and(SiteswapPredicate... predicates)
+    {
+        return predicates.length == 1
+                ? predicates[0] : new Composite(true, predicates);
+    }
+
+    /**
+     * Returns a predicate satisfied by the siteswaps which satisfy any of
+     * <tt>predicates</tt>.
+     */
+    public static SiteswapPredicate or(SiteswapPredicate... predicates)
+    {
+        return predicates.length == 1
+                ? predicates[0] : new Composite(false, predicates);
+    }
+
+    public static SiteswapPredicate not(final SiteswapPredicate predicate)
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                return !predicate.test(siteswap);
+            }
+        };
+    }
+
+    public static SiteswapPredicate interesting1()
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                return siteswap.isInteresting1();
+            }
+        };
+    }
+
+    public static SiteswapPredicate interesting2()
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                return siteswap.isInteresting2();
+            }
+        };
+    }
+
+    public static SiteswapPredicate nikolaj()
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                return siteswap.isInterestingNikolaj();
+            }
+        };
+    }
+
+    public static SiteswapPredicate reverseValid()
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                return siteswap.isReverseValid();
+            }
+        };
+    }
+
+    /**
+     * Requires the period to be between <tt>min</tt> and <tt>max</tt>
+     * (inclusive).
+     */
+    public static SiteswapPredicate period(final int min, final int max)
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                int period = siteswap.getPeriod();
+                return min <= period && period <= max;
+            }
+        };
+    }
+
+    /**
+     * Requires the highest throw to be between <tt>min</tt> and
+     * <tt>max</tt> (inclusive).
+     */
+    public static SiteswapPredicate maxThrow(final int min, final int max)
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                int height = siteswap.getMaxThrow();
+                return min <= height && height <= max;
+            }
+        };
+    }
+
+    /**
+     * Requires the number of balls to be between <tt>min</tt> and
+     * <tt>max</tt> (inclusive).
+     */
+    public static SiteswapPredicate balls(final int min, final int max)
+    {
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                int balls = siteswap.getBalls();
+                return min <= balls && balls <= max;
+            }
+        };
+    }
+
+    /**
+     * Requires a throw with one of the given heights.
+     */
+    public static SiteswapPredicate containsAny(int... heights)
+    {
+        final long mask = Utils.mask(heights);
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                for (int i = 0; i < siteswap.getPeriod(); i++)
+                    if (Utils.isIn(siteswap.getThrow(i), mask))
+                        return true;
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Requires all throws to have one of the given heights.
+     */
+    public static SiteswapPredicate containsOnly(int... heights)
+    {
+        final long mask = Utils.mask(heights);
+        return new SiteswapPredicate()
+        {
+            @Override
+            public boolean test(Siteswap siteswap)
+            {
+                for (int i = 0; i < siteswap.getPeriod(); i++)
+                    if (!Utils.isIn(siteswap.getThrow(i), mask))
+                        return false;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * An <tt>and</tt> or an <tt>or</tt> of several predicates, which keeps
+     * statistics on its operands and reorders them (see the class
+     * description).
+     */
+    private static class Composite
+        implements SiteswapPredicate
+    {
+        /**
+         * Whether this is an <tt>and</tt>. An <tt>and</tt> is decided by an
+         * operand which is false, an <tt>or</tt> by one which is true.
+         */
+        private final boolean and;
+
+        private final Operand[] operands;
+
+        private int evaluations = 0;
+
+        Composite(boolean and, SiteswapPredicate[] predicates)
+        {
+            this.and = and;
+            operands = new Operand[predicates.length];
+            for (int i = 0; i < predicates.length; i++)
+                operands[i] = new Operand(predicates[i]);
+        }
+
+        @Override
+        public boolean test(Siteswap siteswap)
+        {
+            boolean ret = and;
+            for (Operand operand : operands)
+            {
+                if (operand.test(siteswap) != and)
+                {
+                    ret = !and;
+                    break;
+                }
+            }
+
+            if (++evaluations == REORDER_INTERVAL)
+            {
+                evaluations = 0;
+                reorder();
+            }
+            return ret;
+        }
+
+        private void reorder()
+        {
+            for (Operand operand : operands)
+                operand.rank = operand.getRank(and);
+            Arrays.sort(operands, new Comparator<Operand>()
+            {
+                @Override
+                public int compare(Operand a, Operand b)
+                {
+                    return Double.compare(a.rank, b.rank);
+                }
+            });
+            // forget old statistics gradually, in case the input changes
+            for (Operand operand : operands)
+                operand.decay();
+        }
+    }
+
+    /**
+     * An operand of a <tt>Composite</tt> and its statistics.
+     */
+    private static class Operand
+    {
+        private final SiteswapPredicate predicate;
+
+        private long calls = 0;
+        private long true_count = 0;
+
+        /**
+         * The number of timed calls, and the time they took.
+         */
+        private long timed = 0;
+        private long nanos = 0;
+
+        /**
+         * The rank computed by the last <tt>Composite.reorder</tt>.
+         */
+        private double rank;
+
+        Operand(SiteswapPredicate predicate)
+        {
+            this.predicate = predicate;
+        }
+
+        boolean test(Siteswap siteswap)
+        {
+            boolean ret;
+            if ((calls & (TIMING_INTERVAL - 1)) == 0)
+            {
+                long start = System.nanoTime();
+                ret = predicate.test(siteswap);
+                nanos += System.nanoTime() - start;
+                timed++;
+            }
+            else
+            {
+                ret = predicate.test(siteswap);
+            }
+
+            calls++;
+            if (ret)
+                true_count++;
+            return ret;
+        }
+
+        /**
+         * Returns the expected cost of evaluating this operand per siteswap
+         * it decides, lower is better. Operands of an <tt>and</tt> decide
+         * when they are false, those of an <tt>or</tt> when they are true.
+         */
+        double getRank(boolean and)
+        {
+            // at least 1ns, so that the fraction decided still matters for
+            // checks too fast to measure
+            double cost = timed == 0 ? 1 : Math.max(1, (double) nanos / timed);
+            long decided = and ? calls - true_count : true_count;
+            // add one of each so that an operand which hasn't decided
+            // anything yet still gets a finite rank
+            double fraction = (decided + 1.0) / (calls + 2.0);
+            return cost / fraction;
+        }
+
+        void decay()
+        {
+            calls /= 2;
+            true_count /= 2;
+            timed /= 2;
+            nanos /= 2;
+        }
+    }
+
+    /**
+     * A recursive descent parser for expressions:
+     * <pre>
+     *     expression := term ('|' term)*
+     *     term       := factor ('&amp;' factor)*
+     *     factor     := '!' factor | '(' expression ')' | condition
+     * </pre>
+     */
+    private static class Parser
+    {
+        private final String s;
+        private int pos = 0;
+
+        Parser(String s)
+        {
+            this.s = s;
+        }
+
+        SiteswapPredicate parse()
+        {
+            SiteswapPredicate ret = expression();
+            skipSpaces();
+            if (pos < s.length())
+                throw error("unexpected '" + s.charAt(pos) + "'");
+            return ret;
+        }
+
+        private SiteswapPredicate expression()
+        {
+            List<SiteswapPredicate> terms = new ArrayList<SiteswapPredicate>();
+            terms.add(term());
+            while (accept('|'))
+                terms.add(term());
+            return or(terms.toArray(new SiteswapPredicate[terms.size()]));
+        }
+
+        private SiteswapPredicate term()
+        {
+            List<SiteswapPredicate> factors = new ArrayList<SiteswapPredicate>();
+            factors.add(factor());
+            while (accept('&'))
+                factors.add(factor());
+            return and(factors.toArray(new SiteswapPredicate[factors.size()]));
+        }
+
+        private SiteswapPredicate factor()
+        {
+            if (accept('!'))
+                return not(factor());
+            if (accept('('))
+            {
+                SiteswapPredicate ret = expression();
+                if (!accept(')'))
+                    throw error("missing ')'");
+                return ret;
+            }
+            return condition();
+        }
+
+        private SiteswapPredicate condition()
+        {
+            String name = word();
+            if ("has".equalsIgnoreCase(name) || "only".equalsIgnoreCase(name))
+            {
+                if (!accept(':'))
+                    throw error("expected ':' after '" + name + "'");
+                int[] heights = heights();
+                return "has".equalsIgnoreCase(name)
+                        ? containsAny(heights) : containsOnly(heights);
+            }
+            if ("period".equalsIgnoreCase(name)
+                    || "max".equalsIgnoreCase(name)
+                    || "balls".equalsIgnoreCase(name))
+            {
+                String op = operator();
+                int n = number();
+                int min = 0;
+                int max = Integer.MAX_VALUE;
+                if ("<".equals(op))
+                    max = n - 1;
+                else if ("<=".equals(op))
+                    max = n;
+                else if ("=".equals(op))
+                    min = max = n;
+                else if (">=".equals(op))
+                    min = n;
+                else if (">".equals(op))
+                    min = n + 1;
+
+                SiteswapPredicate ret;
+                if ("period".equalsIgnoreCase(name))
+                    ret = period(min, max);
+                else if ("max".equalsIgnoreCase(name))
+                    ret = maxThrow(min, max);
+                else
+                    ret = balls(min, max);
+                return "!=".equals(op) ? not(ret) : ret;
+            }
+            if ("reversible".equalsIgnoreCase(name))
+                return reverseValid();
+
+            SiteswapPredicate ret = forName(name);
+            if (ret == null)
+                throw error("unknown condition '" + name + "'");
+            return ret;
+        }
+
+        private String word()
+        {
+            skipSpaces();
+            int start = pos;
+            while (pos < s.length() && Character.isLetterOrDigit(s.charAt(pos)))
+                pos++;
+            if (start == pos)
+                throw error(pos < s.length()
+                        ? "unexpected '" + s.charAt(pos) + "'"
+                        : "unexpected end");
+            return s.substring(start, pos);
+        }
+
+        private int[] heights()
+        {
+            String word = word();
+            int[] ret = Utils.stringToArray(word);
+            if (ret == null)
+                throw error("invalid heights '" + word + "'");
+            return ret;
+        }
+
+        private int number()
+        {
+            String word = word();
+            try
+            {
+                return Integer.parseInt(word);
+            }
+            catch (NumberFormatException e)
+            {
+                throw error("invalid number '" + word + "'");
+            }
+        }
+
+        private String operator()
+        {
+            skipSpaces();
+            for (String op : new String[] { "<=", ">=", "!=", "<", ">", "=" })
+            {
+                if (s.startsWith(op, pos))
+                {
+                    pos += op.length();
+                    return op;
+                }
+            }
+            throw error("expected a comparison");
+        }
+
+        private boolean accept(char c)
+        {
+            skipSpaces();
+            if (pos < s.length() && s.charAt(pos) == c)
+            {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces()
+        {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+                pos++;
+        }
+
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at position "
+                    + pos + " in '" + s + "'");
+        }
+    }
+}
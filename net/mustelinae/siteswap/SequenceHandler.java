@@ -0,0 +1,17 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A lower-level alternative to <tt>SiteswapHandler</tt>, which receives the
+ * throw heights of a siteswap directly instead of a <tt>Siteswap</tt>
+ * instance, so that nothing needs to be allocated per siteswap.
+ */
+public interface SequenceHandler
+{
+    /**
+     * Handles the siteswap with throw heights <tt>sequence[0]</tt> to
+     * <tt>sequence[length-1]</tt>, in normalized form (see
+     * <tt>Utils.normalize</tt>). The array is reused after the call returns.
+     */
+    public boolean handle(int[] sequence, int length);
+
+}
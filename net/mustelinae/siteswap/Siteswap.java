@@ -6,30 +6,50 @@ import java.util.*;
  * Represents a sequence of integers, could be a valid (vanilla) siteswap or
  * not. Use <tt>isValid()</tt> to check.
  *
+ * Instances are immutable. The sequence is normalized (see
+ * <tt>Utils.normalize</tt>), and its validity and hash code are computed,
+ * once in the constructor, so that comparing and hashing are cheap.
+ *
  * @author Boris Grozev
  */
 public class Siteswap
 {
     private static boolean DEBUG = false;
 
-    private int[] siteswap;
-    private int[] pb; //period base
-    private int len;
+    private final int[] siteswap;
+    private final int[] pb; //period base
+    private final int len;
+    private final boolean valid;
+    private final int hash;
 
     public Siteswap(int[] a)
     {
-        int[] normalized = Utils.normalize(a);
+        this(a == null ? new int[0] : a, false);
         if(DEBUG)
         {
             System.err.println("pre-normalize: "+Arrays.toString(a));
-            System.err.println("post-normalize: "+Arrays.toString(normalized));
+            System.err.println("post-normalize: "+Arrays.toString(siteswap));
         }
+    }
 
-        siteswap = normalized;
-        len = normalized.length;
+    /**
+     * Creates a <tt>Siteswap</tt> from <tt>a</tt>, skipping the
+     * normalization if it is known to be in normalized form already (e.g.
+     * if it was read from a <tt>CorpusReader</tt>). In that case the
+     * instance takes over the array.
+     */
+    Siteswap(int[] a, boolean normalized)
+    {
+        if (!normalized)
+            a = Utils.normalize(a);
+        siteswap = a;
+        len = a.length;
         pb = new int[len];
         for (int i = 0; i < len; i++)
             pb[i] = siteswap[i] % len;
+
+        valid = sanityCheck() && Utils.isValid(siteswap);
+        hash = valid ? hash(siteswap) : 0;
     }
 
     public Siteswap(String str)
@@ -56,14 +76,62 @@ public class Siteswap
      */
     public boolean isValid()
     {
-        if (!sanityCheck())
-            return false;
-        return Utils.isValid(siteswap);
+        return valid;
     }
 
+    /**
+     * Returns a copy of the (normalized) sequence.
+     */
     public int[] getSequence()
     {
-        return siteswap;
+        return siteswap.clone();
+    }
+
+    /**
+     * Returns the length of the (normalized) sequence, i.e. the period.
+     */
+    public int getPeriod()
+    {
+        return len;
+    }
+
+    /**
+     * Returns the <tt>i</tt>-th throw of the (normalized) sequence, without
+     * copying it like <tt>getSequence</tt> does.
+     */
+    public int getThrow(int i)
+    {
+        return siteswap[i];
+    }
+
+    /**
+     * Returns the height of the highest throw, or -1 if this isn't a valid
+     * siteswap.
+     */
+    public int getMaxThrow()
+    {
+        if (!valid)
+            return -1;
+
+        int max = 0;
+        for (int i = 0; i < len; i++)
+            max = Math.max(max, siteswap[i]);
+        return max;
+    }
+
+    /**
+     * Returns the number of balls (the average throw height), or -1 if this
+     * isn't a valid siteswap.
+     */
+    public int getBalls()
+    {
+        if (!valid)
+            return -1;
+
+        int sum = 0;
+        for (int i = 0; i < len; i++)
+            sum += siteswap[i];
+        return sum / len;
     }
 
     /**
@@ -77,37 +145,40 @@ public class Siteswap
             return false;
         Siteswap s = (Siteswap)o;
 
-        if (!isValid() && !s.isValid())
-            return true;
-        if (!isValid() && s.isValid())
-            return false;
-        if (isValid() && !s.isValid())
-            return false;
+        if (!valid || !s.valid)
+            return valid == s.valid;
 
-        int[] sequence = s.getSequence();
-
-        return Arrays.equals(
-                Utils.normalize(siteswap),
-                Utils.normalize(sequence));
+        // both are normalized already
+        return hash == s.hash && Arrays.equals(siteswap, s.siteswap);
     }
 
     /**
-     * Baaad practice. Returns a hash code that depends (in a deterministic,
-     * but arbitrarily chosen way) on the values of <tt>siteswap</tt>. Just a
-     * hack to make java Set-s of Siteswap-s work as expected...probably kills
-     * performance :/
+     * Returns a hash code of the normalized sequence (0 for all invalid
+     * siteswaps, since they are all equal). Computed in the constructor.
      */
     @Override
     public int hashCode()
     {
-        int hc = 0;
-        for(int i = 0; i<siteswap.length; i++)
-        {
-            hc+=42;
-            hc*=siteswap[i];
-        }
+        return hash;
+    }
 
-        return hc;
+    /**
+     * Hashes <tt>a</tt> with a polynomial hash whose bits are then mixed
+     * with the finalizer of MurmurHash3, so that sequences which differ in
+     * a single throw end up in different buckets.
+     */
+    private static int hash(int[] a)
+    {
+        int h = a.length;
+        for (int i = 0; i < a.length; i++)
+            h = 31 * h + a[i];
+
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
     }
 
     /**
@@ -118,7 +189,7 @@ public class Siteswap
      */
     public boolean isInteresting1()
     {
-        if (!isValid())
+        if (!valid)
             return false;
 
         for (int i = 0; i < len; i++)
@@ -136,7 +207,7 @@ public class Siteswap
      */
     public boolean isInteresting2()
     {
-        if (!isValid())
+        if (!valid)
             return false;
 
         for (int i = 0; i < len; i++)
@@ -172,7 +243,7 @@ public class Siteswap
      */
     public boolean isInterestingNikolaj()
     {
-        if(!isValid())
+        if(!valid)
             return false;
         if(len % 3 == 0 || len % 2 == 0)
         {
@@ -234,7 +305,7 @@ public class Siteswap
 
     public String toString()
     {
-        if(!isValid())
+        if(!valid)
             return "";
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < len; i++)
@@ -0,0 +1,91 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+
+/**
+ * A batch of siteswaps with the same period, in normalized form, with
+ * their throw heights stored one after another in a single array.
+ */
+public class SiteswapBatch
+{
+    private final int period;
+    private final int[] throws_;
+    private int size = 0;
+
+    /**
+     * Creates an empty batch with room for <tt>capacity</tt> siteswaps with
+     * period <tt>period</tt>.
+     */
+    public SiteswapBatch(int period, int capacity)
+    {
+        this.period = period;
+        throws_ = new int[period * capacity];
+    }
+
+    /**
+     * Adds the siteswap with throw heights <tt>sequence[0]</tt> to
+     * <tt>sequence[period-1]</tt>.
+     * @return <tt>false</tt> if the batch is full after adding it
+     */
+    boolean add(int[] sequence)
+    {
+        System.arraycopy(sequence, 0, throws_, size * period, period);
+        size++;
+        return !isFull();
+    }
+
+    public boolean isFull()
+    {
+        return (size + 1) * period > throws_.length;
+    }
+
+    /**
+     * Returns the number of siteswaps in the batch.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getPeriod()
+    {
+        return period;
+    }
+
+    /**
+     * Returns throw <tt>j</tt> of the <tt>i</tt>-th siteswap.
+     */
+    public int getThrow(int i, int j)
+    {
+        return throws_[i * period + j];
+    }
+
+    /**
+     * Returns the array holding the throw heights, <tt>getPeriod()</tt> of
+     * them per siteswap, for the first <tt>size()</tt> siteswaps. It must
+     * not be modified.
+     */
+    public int[] getThrows()
+    {
+        return throws_;
+    }
+
+    /**
+     * Copies the throw heights of the <tt>i</tt>-th siteswap to
+     * <tt>out</tt>.
+     */
+    public void get(int i, int[] out)
+    {
+        System.arraycopy(throws_, i * period, out, 0, period);
+    }
+
+    /**
+     * Returns the <tt>i</tt>-th siteswap.
+     */
+    public Siteswap getSiteswap(int i)
+    {
+        int from = i * period;
+        return new Siteswap(Arrays.copyOfRange(throws_, from, from + period),
+                            true);
+    }
+}
@@ -0,0 +1,319 @@
+package net.mustelinae.siteswap;
+
+import java.math.*;
+import java.util.*;
+
+/**
+ * Counts the siteswaps with a given period in a <tt>StateGraph</tt> without
+ * enumerating them.
+ *
+ * Every siteswap of period <tt>n</tt> is a cycle of length <tt>n</tt> in the
+ * graph which does not repeat a shorter cycle. If <tt>W(n)</tt> is the
+ * number of closed walks of length <tt>n</tt> (the trace of the
+ * <tt>n</tt>-th power of the adjacency matrix), then by Moebius inversion
+ * the number of siteswaps with period (exactly) <tt>n</tt> is
+ * <pre>
+ *     (1/n) * sum over d|n of mu(n/d) * W(d)
+ * </pre>
+ * which is the number of sequences <tt>Utils.normalize</tt> maps to a
+ * sequence of length <tt>n</tt>, up to rotation.
+ *
+ * <tt>W(n)</tt> is computed by a DP on (state, length), one root state at a
+ * time. As in <tt>CycleEnumerator</tt>'s canonical mode, only walks on
+ * which the root has the smallest index are followed from a root. Those
+ * walks are sequences of loops which return to the root only at their end;
+ * if <tt>F(k)</tt> is the number of such loops of length <tt>k</tt>, the
+ * closed walks they account for satisfy
+ * <pre>
+ *     T(n) = n * F(n) + sum for k=1..n-1 of F(k) * T(n-k)
+ * </pre>
+ * (<tt>T</tt> counts every walk once for each of its rotations), and
+ * <tt>W(n)</tt> is the sum of <tt>T(n)</tt> over all roots.
+ *
+ * The counts grow exponentially, so the DP is done modulo a few primes
+ * below 2^31 and the exact values are restored with the Chinese remainder
+ * theorem.
+ */
+public class SiteswapCounter
+{
+    private static boolean DEBUG = Utils.DEBUG;
+
+    private final StateGraph graph;
+
+    /**
+     * The primes used as moduli, as many as needed for the largest period
+     * counted so far.
+     */
+    private static final List<Long> PRIMES = new ArrayList<Long>();
+
+    /**
+     * <tt>walks[n]</tt> is the number of closed walks of length <tt>n</tt>,
+     * for <tt>1 &lt;= n &lt;= max_period</tt>.
+     */
+    private BigInteger[] walks;
+
+    public SiteswapCounter(StateGraph graph)
+    {
+        this.graph = graph;
+    }
+
+    public SiteswapCounter(int balls, int max_height)
+    {
+        this(StateGraph.get(balls, max_height));
+    }
+
+    /**
+     * Returns the number of distinct siteswaps with period <tt>period</tt>,
+     * that is the number of siteswaps <tt>Generator</tt> generates for
+     * <tt>period</tt> in canonical mode.
+     */
+    public BigInteger count(int period)
+    {
+        if (period < 1)
+            return BigInteger.ZERO;
+
+        BigInteger[] w = getClosedWalks(period);
+        BigInteger sum = BigInteger.ZERO;
+        for (int d = 1; d <= period; d++)
+        {
+            if (period % d != 0)
+                continue;
+            int mu = mobius(period / d);
+            if (mu > 0)
+                sum = sum.add(w[d]);
+            else if (mu < 0)
+                sum = sum.subtract(w[d]);
+        }
+        return sum.divide(BigInteger.valueOf(period));
+    }
+
+    /**
+     * Returns an array whose <tt>n</tt>-th element is the number of closed
+     * walks of length <tt>n</tt> in the graph, for
+     * <tt>1 &lt;= n &lt;= max_period</tt> (the 0-th element is unused).
+     * Every rotation of a walk, and every repetition of a shorter one, is
+     * counted separately.
+     */
+    public synchronized BigInteger[] getClosedWalks(int max_period)
+    {
+        if (walks == null || walks.length <= max_period)
+            walks = computeClosedWalks(max_period);
+        return Arrays.copyOf(walks, max_period + 1);
+    }
+
+    private BigInteger[] computeClosedWalks(int max_period)
+    {
+        long[] primes = getPrimes(max_period);
+        int k = primes.length;
+        int n = graph.size();
+
+        if (DEBUG)
+            System.err.println("Counting closed walks up to length "
+                    + max_period + " modulo " + k + " primes");
+
+        // cur[state*k + j] is the number of walks (modulo primes[j]) which
+        // reach 'state' after the current number of steps
+        long[] cur = new long[n * k];
+        long[] next = new long[n * k];
+        long[] loops = new long[(max_period + 1) * k];
+        long[] rotations = new long[(max_period + 1) * k];
+        long[] total = new long[(max_period + 1) * k];
+
+        for (int root = 0; root < n; root++)
+        {
+            Arrays.fill(loops, 0);
+            for (int j = 0; j < k; j++)
+                cur[root * k + j] = 1;
+
+            // states with a non-zero count are exactly those in [low, high]
+            // which were reached, track the range to skip the rest
+            int low = root;
+            int high = root;
+            for (int length = 1; length <= max_period; length++)
+            {
+                int next_low = n;
+                int next_high = -1;
+                for (int state = low; state <= high; state++)
+                {
+                    int from = state * k;
+                    if (isZero(cur, from, k))
+                        continue;
+
+                    int end = graph.getEdgeEnd(state);
+                    for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                    {
+                        int target = graph.getEdgeTarget(edge);
+                        if (target < root)
+                            continue;
+
+                        // walks reaching the root close a loop, and are not
+                        // continued: longer walks are made of several loops
+                        int to = target == root ? length * k : target * k;
+                        long[] dst = target == root ? loops : next;
+                        for (int j = 0; j < k; j++)
+                        {
+                            long sum = dst[to + j] + cur[from + j];
+                            dst[to + j] = sum >= primes[j] ? sum - primes[j] : sum;
+                        }
+                        if (target != root)
+                        {
+                            next_low = Math.min(next_low, target);
+                            next_high = Math.max(next_high, target);
+                        }
+                    }
+                    Arrays.fill(cur, from, from + k, 0);
+                }
+
+                long[] tmp = cur;
+                cur = next;
+                next = tmp;
+                low = next_low;
+                high = next_high;
+            }
+            if (low <= high)
+                Arrays.fill(cur, low * k, (high + 1) * k, 0);
+
+            addRotations(loops, rotations, total, primes, max_period);
+        }
+
+        BigInteger[] ret = new BigInteger[max_period + 1];
+        ret[0] = BigInteger.ONE;
+        long[] residues = new long[k];
+        for (int length = 1; length <= max_period; length++)
+        {
+            System.arraycopy(total, length * k, residues, 0, k);
+            ret[length] = crt(residues, primes);
+        }
+        return ret;
+    }
+
+    /**
+     * From the number of loops of each length from a root, computes the
+     * number of closed walks they make up (see the class description) and
+     * adds it to <tt>total</tt>.
+     */
+    private static void addRotations(long[] loops, long[] rotations,
+                                     long[] total, long[] primes,
+                                     int max_period)
+    {
+        int k = primes.length;
+        for (int length = 1; length <= max_period; length++)
+        {
+            for (int j = 0; j < k; j++)
+            {
+                long p = primes[j];
+                long t = (length % p) * loops[length * k + j] % p;
+                for (int i = 1; i < length; i++)
+                {
+                    t += loops[i * k + j] * rotations[(length - i) * k + j] % p;
+                    if (t >= p)
+                        t -= p;
+                }
+                rotations[length * k + j] = t;
+
+                long sum = total[length * k + j] + t;
+                total[length * k + j] = sum >= p ? sum - p : sum;
+            }
+        }
+    }
+
+    private static boolean isZero(long[] a, int from, int k)
+    {
+        for (int j = 0; j < k; j++)
+            if (a[from + j] != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns enough primes for the counts of walks of length up to
+     * <tt>max_period</tt> to be restored from their residues. There are at
+     * most <tt>size * degree^n</tt> walks of length <tt>n</tt>.
+     */
+    private long[] getPrimes(int max_period)
+    {
+        int degree = 1;
+        for (int i = 0; i < graph.size(); i++)
+            degree = Math.max(degree,
+                    graph.getEdgeEnd(i) - graph.getFirstEdge(i));
+        double bits = Math.log(graph.size()) / Math.log(2)
+                + max_period * Math.log(degree) / Math.log(2) + 2;
+        int k = (int) Math.ceil(bits / 30);
+
+        long[] ret = new long[k];
+        synchronized (PRIMES)
+        {
+            long candidate = PRIMES.isEmpty()
+                    ? Integer.MAX_VALUE : PRIMES.get(PRIMES.size() - 1) - 1;
+            while (PRIMES.size() < k)
+            {
+                if (BigInteger.valueOf(candidate).isProbablePrime(64))
+                    PRIMES.add(candidate);
+                candidate--;
+            }
+            for (int j = 0; j < k; j++)
+                ret[j] = PRIMES.get(j);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the (non-negative) number which is congruent to
+     * <tt>residues[j]</tt> modulo <tt>primes[j]</tt> for all <tt>j</tt>, and
+     * smaller than the product of the primes.
+     */
+    private static BigInteger crt(long[] residues, long[] primes)
+    {
+        BigInteger product = BigInteger.ONE;
+        for (long p : primes)
+            product = product.multiply(BigInteger.valueOf(p));
+
+        BigInteger ret = BigInteger.ZERO;
+        for (int j = 0; j < primes.length; j++)
+        {
+            BigInteger p = BigInteger.valueOf(primes[j]);
+            BigInteger m = product.divide(p);
+            ret = ret.add(BigInteger.valueOf(residues[j])
+                    .multiply(m).multiply(m.modInverse(p)));
+        }
+        return ret.mod(product);
+    }
+
+    /**
+     * Returns the Moebius function of <tt>n</tt>.
+     */
+    static int mobius(int n)
+    {
+        int ret = 1;
+        for (int p = 2; p * p <= n; p++)
+        {
+            if (n % p != 0)
+                continue;
+            n /= p;
+            if (n % p == 0)
+                return 0;
+            ret = -ret;
+        }
+        if (n > 1)
+            ret = -ret;
+        return ret;
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length != 4)
+        {
+            System.err.println("Usage: SiteswapCounter <balls> <max-height> "
+                    + "<period-from> <period-to>");
+            return;
+        }
+        int balls = Integer.parseInt(args[0]);
+        int max_height = Integer.parseInt(args[1]);
+        int period_from = Integer.parseInt(args[2]);
+        int period_to = Integer.parseInt(args[3]);
+
+        SiteswapCounter counter = new SiteswapCounter(balls, max_height);
+        for(int period = period_from; period<=period_to; period++)
+            System.out.println(period + " " + counter.count(period));
+    }
+}
@@ -0,0 +1,16 @@
+package net.mustelinae.siteswap;
+
+/**
+ * A condition on complete siteswaps, as used by <tt>Filter</tt>. Unlike a
+ * <tt>Constraint</tt>, it is checked on a <tt>Siteswap</tt> instance, so it
+ * can use anything <tt>Siteswap</tt> knows (e.g. whether the reverse
+ * sequence is valid), but it can't prune a search.
+ *
+ * See <tt>Predicates</tt> for the available implementations and for
+ * combining them.
+ */
+public interface SiteswapPredicate
+{
+    public boolean test(Siteswap siteswap);
+
+}
@@ -0,0 +1,231 @@
+package net.mustelinae.siteswap;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Publishes the siteswaps found by a <tt>Generator</tt> in batches, so that
+ * slow subscribers (e.g. ones writing to disk) don't hold up the search,
+ * and the search doesn't get too far ahead of them.
+ *
+ * The search runs on its own thread once <tt>start</tt> is called, and the
+ * subscribers are called on the threads of an <tt>Executor</tt>. Each
+ * subscriber has a bounded buffer of batches: it receives them as it
+ * requests them, and when its buffer is full the search waits until there
+ * is room again, so at most about <tt>buffer_capacity</tt> batches per
+ * subscriber are in memory at any time.
+ *
+ * The search stops early if all subscribers cancel their subscriptions,
+ * on <tt>cancel</tt>, if the generator's cancellation token is cancelled,
+ * or if its limits say so. While the search runs, the publisher replaces
+ * the generator's batch handler and token with its own (the token chained
+ * to the generator's), and clears its sequence handler, which would
+ * otherwise take precedence over the batch handler. All three are put
+ * back when the search is over, so they must not be changed by anyone
+ * else meanwhile.
+ */
+public class SiteswapPublisher
+    implements Flow.Publisher<SiteswapBatch>
+{
+    /**
+     * How long (in milliseconds) to wait for room in a full buffer before
+     * checking whether the publisher was cancelled.
+     */
+    private static final long OFFER_TIMEOUT = 50;
+
+    private final Generator generator;
+    private final int period_from;
+    private final int period_to;
+    private final int batch_size;
+    private final SubmissionPublisher<SiteswapBatch> publisher;
+
+    /**
+     * The token of the current search, see <tt>cancel</tt>.
+     */
+    private volatile Cancellation cancellation = new Cancellation();
+
+    /**
+     * Whether <tt>cancel</tt> was called, possibly before the search got to
+     * chain its token to the generator's.
+     */
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+
+    /**
+     * Creates a publisher of the siteswaps <tt>generator</tt> finds with
+     * periods <tt>period_from</tt> to <tt>period_to</tt>, in batches of up
+     * to <tt>batch_size</tt>, delivered to subscribers on
+     * <tt>executor</tt>.
+     * @param buffer_capacity the number of batches which can wait for
+     * each subscriber, rounded up to a power of two
+     */
+    public SiteswapPublisher(Generator generator, int period_from,
+                             int period_to, int batch_size,
+                             int buffer_capacity, Executor executor)
+    {
+        if (batch_size < 1)
+            throw new IllegalArgumentException("batch size must be positive: "
+                    + batch_size);
+        this.generator = generator;
+        this.period_from = period_from;
+        this.period_to = period_to;
+        this.batch_size = batch_size;
+        publisher = new SubmissionPublisher<SiteswapBatch>(executor,
+                                                           buffer_capacity);
+    }
+
+    /**
+     * Like the other constructor, delivering batches on the common
+     * <tt>ForkJoinPool</tt>.
+     */
+    public SiteswapPublisher(Generator generator, int period_from,
+                             int period_to, int batch_size,
+                             int buffer_capacity)
+    {
+        this(generator, period_from, period_to, batch_size, buffer_capacity,
+             ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Adds a subscriber. Only batches published after it subscribed are
+     * delivered to it, so all subscribers should subscribe before
+     * <tt>start</tt> is called.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super SiteswapBatch> subscriber)
+    {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Starts the search on a new thread. When it is over, the subscribers
+     * are completed (with <tt>onComplete</tt>, or <tt>onError</tt> if the
+     * generator threw), once they have received all batches.
+     * @return a future which completes with the reason the search stopped
+     */
+    public synchronized CompletableFuture<Generator.StopReason> start()
+    {
+        if (started)
+            throw new IllegalStateException("already started");
+        started = true;
+
+        final CompletableFuture<Generator.StopReason> result
+                = new CompletableFuture<Generator.StopReason>();
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Generator.StopReason reason = generate();
+                    publisher.close();
+                    result.complete(reason);
+                }
+                catch (Throwable t)
+                {
+                    publisher.closeExceptionally(t);
+                    result.completeExceptionally(t);
+                }
+            }
+        }, "SiteswapPublisher");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * Stops the search, which then completes the subscribers as if it was
+     * over.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        cancellation.cancel();
+    }
+
+    private Generator.StopReason generate()
+    {
+        Cancellation previous_cancellation = generator.getCancellation();
+        SequenceHandler previous_sequence_handler
+                = generator.getSequenceHandler();
+        BatchHandler previous_batch_handler = generator.getBatchHandler();
+        int previous_batch_size = generator.getBatchSize();
+
+        cancellation = new Cancellation(previous_cancellation);
+        if (cancelled)
+            cancellation.cancel();
+        try
+        {
+            generator.setCancellation(cancellation);
+            generator.setSequenceHandler(null);
+            generator.setBatchHandler(new BatchHandler()
+            {
+                @Override
+                public boolean handle(SiteswapBatch batch)
+                {
+                    return publish(batch);
+                }
+            }, batch_size);
+
+            generator.generate(period_from, period_to);
+        }
+        finally
+        {
+            generator.setCancellation(previous_cancellation);
+            generator.setSequenceHandler(previous_sequence_handler);
+            generator.setBatchHandler(previous_batch_handler,
+                    previous_batch_size > 0 ? previous_batch_size : batch_size);
+        }
+
+        Generator.StopReason reason = generator.getStopReason();
+        if (reason == Generator.StopReason.HANDLER
+                && cancellation.isCancelled())
+            return cancellation.isTimedOut()
+                    ? Generator.StopReason.TIMEOUT
+                    : Generator.StopReason.CANCELLED;
+        return reason;
+    }
+
+    /**
+     * Hands <tt>batch</tt> to the subscribers, waiting while the buffer of
+     * any of them is full, until the publisher is cancelled.
+     * @return <tt>false</tt> if there are no subscribers left, or the
+     * publisher was cancelled
+     */
+    private boolean publish(SiteswapBatch batch)
+    {
+        if (!publisher.hasSubscribers())
+            return false;
+        publisher.offer(batch, OFFER_TIMEOUT, TimeUnit.MILLISECONDS, retry);
+        return !cancellation.isCancelled() && publisher.hasSubscribers();
+    }
+
+    /**
+     * Called by <tt>offer</tt> when the buffer of a subscriber stayed full
+     * for <tt>OFFER_TIMEOUT</tt>. Waits until there is room again and has
+     * the batch offered once more, or drops it if the publisher was
+     * cancelled meanwhile (unlike <tt>submit</tt>, which would wait for the
+     * subscriber forever).
+     */
+    private final BiPredicate<Flow.Subscriber<? super SiteswapBatch>,
+                              SiteswapBatch> retry
+            = new BiPredicate<Flow.Subscriber<? super SiteswapBatch>,
+                              SiteswapBatch>()
+    {
+        @Override
+        public boolean test(Flow.Subscriber<? super SiteswapBatch> subscriber,
+                            SiteswapBatch batch)
+        {
+            while (publisher.estimateMaximumLag()
+                    >= publisher.getMaxBufferCapacity())
+            {
+                if (cancellation.isCancelled())
+                    return false;
+                LockSupport.parkNanos(OFFER_TIMEOUT * 1000000);
+            }
+            return !cancellation.isCancelled();
+        }
+    };
+}
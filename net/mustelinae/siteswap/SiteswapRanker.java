@@ -0,0 +1,633 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+
+/**
+ * Maps the siteswaps with a given period in a <tt>StateGraph</tt> to their
+ * indices in canonical order and back, without enumerating the siteswaps
+ * before them. This allows paging through the siteswaps, splitting a large
+ * run into ranges of indices, or resuming one from an index.
+ *
+ * The canonical order is the order in which a sequential <tt>Generator</tt>
+ * in canonical mode generates the siteswaps of one period from the same
+ * graph: by the index of the root (the state with the smallest index on
+ * the cycle), and then by the throw heights of the walk from the root (the
+ * one which <tt>CycleEnumerator.isCanonical</tt> accepts), compared in the
+ * order the edges of a state are in. The siteswaps themselves are returned
+ * in normalized form, as the generator does.
+ *
+ * The walks from a root are the words over its loops (the walks which
+ * return to it only at their end), and the canonical ones are those which
+ * are larger than all their other rotations between loops. The number of
+ * canonical walks below a given one, <tt>w</tt>, is counted like necklaces
+ * below a word are:
+ * <ul>
+ * <li><tt>w</tt> is first replaced by the smallest walk which is at least
+ * <tt>w</tt> and not smaller than any of its rotations, as far as they are
+ * compared. This doesn't change the count, since all canonical walks are
+ * among those.</li>
+ * <li>A closed walk all of whose rotations are below <tt>w</tt> is then a
+ * sequence of segments, each of which follows <tt>w</tt> for some throws,
+ * makes a smaller throw, and then gets back to the root by any path. The
+ * number of those paths, by (state, length), is the only part which
+ * depends on the graph rather than on <tt>w</tt>, and is computed once per
+ * root.</li>
+ * <li>Counting these sequences with every rotation (marking a position in
+ * the first segment) counts each cycle once per throw in its period, and
+ * the cycles which repeat a shorter one are subtracted by counting those
+ * recursively.</li>
+ * </ul>
+ * The count takes <tt>O(period^2 * degree)</tt> steps for a root whose
+ * path counts are known, the path counts <tt>O(period * edges)</tt>, so
+ * <tt>rank</tt> and <tt>unrank</tt> are cheap as long as the root doesn't
+ * change (the counts of the last root are kept). The number of canonical
+ * walks from each root is counted in the constructor, in about the time
+ * <tt>SiteswapCounter</tt> takes.
+ *
+ * The indices are longs, so the number of siteswaps (times the period)
+ * must fit into one. Ranking needs the states of the siteswap, so only
+ * works for max heights up to 63.
+ */
+public class SiteswapRanker
+{
+    private final StateGraph graph;
+    private final int period;
+
+    /**
+     * <tt>cumulative[r]</tt> is the number of siteswaps whose root is one of
+     * the states <tt>0</tt> to <tt>r</tt>.
+     */
+    private final long[] cumulative;
+
+    /**
+     * The path counts of the last root used.
+     */
+    private volatile Paths paths;
+
+    public SiteswapRanker(StateGraph graph, int period)
+    {
+        if (period < 1)
+            throw new IllegalArgumentException("invalid period: " + period);
+        this.graph = graph;
+        this.period = period;
+        try
+        {
+            cumulative = getCumulative();
+        }
+        catch (ArithmeticException e)
+        {
+            throw new IllegalArgumentException(
+                    "too many siteswaps with period " + period);
+        }
+    }
+
+    public SiteswapRanker(int balls, int max_height, int period)
+    {
+        this(StateGraph.get(balls, max_height), period);
+    }
+
+    public int getPeriod()
+    {
+        return period;
+    }
+
+    /**
+     * Returns the number of siteswaps with period <tt>period</tt>, the same
+     * as <tt>SiteswapCounter.count</tt>.
+     */
+    public long size()
+    {
+        return cumulative.length == 0 ? 0 : cumulative[cumulative.length - 1];
+    }
+
+    /**
+     * Returns the index of <tt>siteswap</tt> in canonical order.
+     *
+     * @throws IllegalArgumentException if <tt>siteswap</tt> is not a valid
+     * siteswap with period <tt>period</tt> in the graph.
+     */
+    public long rank(Siteswap siteswap)
+    {
+        if (!siteswap.isValid() || siteswap.getPeriod() != period
+                || siteswap.getBalls() != graph.getBalls()
+                || siteswap.getMaxThrow() > graph.getMaxHeight())
+            throw new IllegalArgumentException("not a siteswap with period "
+                    + period + " in the graph: " + siteswap);
+        int[] a = siteswap.getSequence();
+
+        // follow the cycle from the state of the first throw
+        int[] states = new int[period + 1];
+        states[0] = graph.getIndex(getState(a));
+        int root = states[0];
+        for (int i = 0; i < period; i++)
+        {
+            states[i + 1] = graph.getEdgeTarget(findEdge(states[i], a[i]));
+            root = Math.min(root, states[i + 1]);
+        }
+
+        // the walk from the root is the largest rotation starting there
+        int start = -1;
+        for (int i = 0; i < period; i++)
+        {
+            if (states[i] == root
+                    && (start < 0 || compareRotations(a, i, start) > 0))
+                start = i;
+        }
+        int[] walk = new int[period];
+        for (int i = 0; i < period; i++)
+            walk[i] = a[(start + i) % period];
+
+        long before = root == 0 ? 0 : cumulative[root - 1];
+        return before + getPaths(root).countBelow(walk, period);
+    }
+
+    /**
+     * Returns the siteswap with index <tt>index</tt> in canonical order, in
+     * normalized form.
+     *
+     * @throws IllegalArgumentException if <tt>index</tt> is not between 0
+     * and <tt>size() - 1</tt>.
+     */
+    public Siteswap unrank(long index)
+    {
+        if (index < 0 || index >= size())
+            throw new IllegalArgumentException("index out of range: "
+                    + index);
+
+        // the first root with cumulative[root] > index
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > index)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        int root = low;
+        long k = index - (root == 0 ? 0 : cumulative[root - 1]);
+
+        // choose the throws one by one: the largest one such that fewer
+        // than k+1 walks start with a smaller prefix
+        Paths paths = getPaths(root);
+        int[] walk = new int[period];
+        int state = root;
+        for (int i = 0; i < period; i++)
+        {
+            int chosen = -1;
+            int end = graph.getEdgeEnd(state);
+            for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+            {
+                int target = graph.getEdgeTarget(edge);
+                if (target < root || (i == period - 1 && target != root))
+                    continue;
+                walk[i] = graph.getEdgeLabel(edge);
+                for (int j = i + 1; j < period; j++)
+                    walk[j] = 0;
+                if (paths.countBelow(walk, period) > k)
+                    break;
+                chosen = edge;
+            }
+            walk[i] = graph.getEdgeLabel(chosen);
+            state = graph.getEdgeTarget(chosen);
+        }
+        return new Siteswap(walk);
+    }
+
+    /**
+     * Counts the canonical walks from each root with a DP on (state,
+     * length), as <tt>SiteswapCounter</tt> does, and returns their
+     * cumulative sums.
+     */
+    private long[] getCumulative()
+    {
+        int n = graph.size();
+        long[] ret = new long[n];
+        long[] cur = new long[n];
+        long[] next = new long[n];
+        long[] loops = new long[period + 1];
+        long sum = 0;
+        for (int root = 0; root < n; root++)
+        {
+            Arrays.fill(loops, 0);
+            cur[root] = 1;
+            // track the range of reached states to skip the rest
+            int low = root;
+            int high = root;
+            for (int length = 1; length <= period && low <= high; length++)
+            {
+                int next_low = n;
+                int next_high = -1;
+                for (int state = low; state <= high; state++)
+                {
+                    long count = cur[state];
+                    if (count == 0)
+                        continue;
+                    int end = graph.getEdgeEnd(state);
+                    for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                    {
+                        int target = graph.getEdgeTarget(edge);
+                        if (target < root)
+                            continue;
+                        if (target == root)
+                        {
+                            loops[length] = add(loops[length], count);
+                            continue;
+                        }
+                        next[target] = add(next[target], count);
+                        next_low = Math.min(next_low, target);
+                        next_high = Math.max(next_high, target);
+                    }
+                    cur[state] = 0;
+                }
+
+                long[] tmp = cur;
+                cur = next;
+                next = tmp;
+                low = next_low;
+                high = next_high;
+            }
+            if (low <= high)
+                Arrays.fill(cur, low, high + 1, 0);
+
+            sum = Math.addExact(sum, countCanonical(getRotations(loops),
+                                                    period));
+            ret[root] = sum;
+        }
+        return ret;
+    }
+
+    /**
+     * Adds two counts, which are non-negative, saturating at
+     * <tt>Long.MAX_VALUE</tt>. Only counts of paths which can't be part of a
+     * closed walk may saturate, the others are bounded by the number of
+     * closed walks, which is checked.
+     */
+    private static long add(long a, long b)
+    {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * From the number of loops of each length from a root, computes the
+     * number of closed walks they make up, counting every rotation (see
+     * <tt>SiteswapCounter</tt>).
+     */
+    private static long[] getRotations(long[] loops)
+    {
+        long[] ret = new long[loops.length];
+        for (int length = 1; length < loops.length; length++)
+        {
+            long t = Math.multiplyExact((long) length, loops[length]);
+            for (int i = 1; i < length; i++)
+                t = Math.addExact(t,
+                        Math.multiplyExact(loops[i], ret[length - i]));
+            ret[length] = t;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of canonical walks of length <tt>length</tt>, from
+     * the closed walks of each length up to it, by Moebius inversion.
+     */
+    private static long countCanonical(long[] rotations, int length)
+    {
+        long sum = 0;
+        for (int d = 1; d <= length; d++)
+        {
+            if (length % d == 0)
+                sum += SiteswapCounter.mobius(length / d) * rotations[d];
+        }
+        return sum / length;
+    }
+
+    private Paths getPaths(int root)
+    {
+        Paths ret = paths;
+        if (ret == null || ret.root != root)
+            paths = ret = new Paths(root);
+        return ret;
+    }
+
+    /**
+     * Returns the edge from <tt>state</tt> with throw height
+     * <tt>height</tt>, or -1 if there is none.
+     */
+    private int findEdge(int state, int height)
+    {
+        int end = graph.getEdgeEnd(state);
+        for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+        {
+            int label = graph.getEdgeLabel(edge);
+            if (label == height)
+                return edge;
+            if (label > height)
+                break;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the state from which the (valid) siteswap <tt>a</tt> is
+     * thrown: position <tt>k</tt> is set if a throw from an earlier period
+     * lands <tt>k-1</tt> beats after the first throw.
+     */
+    private static long getState(int[] a)
+    {
+        long ret = 0;
+        for (int i = 0; i < a.length; i++)
+        {
+            if (a[i] == 0)
+                continue;
+            for (int k = i + a[i] + 1 - a.length; k >= 1; k -= a.length)
+                ret = StateGraph.set(ret, k);
+        }
+        return ret;
+    }
+
+    /**
+     * Compares the rotations of <tt>a</tt> starting at <tt>i</tt> and
+     * <tt>j</tt>.
+     */
+    private static int compareRotations(int[] a, int i, int j)
+    {
+        for (int m = 0; m < a.length; m++)
+        {
+            int diff = a[(i + m) % a.length] - a[(j + m) % a.length];
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    /**
+     * The number of paths back to a root, and the counts made from them.
+     */
+    private class Paths
+    {
+        private final int root;
+
+        /**
+         * <tt>counts[l][state-root]</tt> is the number of paths of length
+         * <tt>l</tt> from <tt>state</tt> to the root which only go through
+         * states with larger indices, for <tt>l &lt; period</tt>.
+         */
+        private final long[][] counts;
+
+        /**
+         * <tt>rotations[l]</tt> is the number of closed walks of length
+         * <tt>l</tt> through the root on which it has the smallest index,
+         * counting every rotation.
+         */
+        private final long[] rotations;
+
+        private Paths(int root)
+        {
+            this.root = root;
+            int n = graph.size();
+            counts = new long[period][n - root];
+            counts[0][0] = 1;
+            for (int l = 1; l < period; l++)
+            {
+                long[] prev = counts[l - 1];
+                long[] cur = counts[l];
+                for (int state = root + 1; state < n; state++)
+                {
+                    long sum = 0;
+                    int end = graph.getEdgeEnd(state);
+                    for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                    {
+                        int target = graph.getEdgeTarget(edge);
+                        if (target >= root)
+                            sum = add(sum, prev[target - root]);
+                    }
+                    cur[state - root] = sum;
+                }
+            }
+
+            long[] loops = new long[period + 1];
+            int end = graph.getEdgeEnd(root);
+            for (int edge = graph.getFirstEdge(root); edge < end; edge++)
+            {
+                int target = graph.getEdgeTarget(edge);
+                if (target < root)
+                    continue;
+                for (int l = 1; l <= period; l++)
+                    loops[l] += counts[l - 1][target - root];
+            }
+            rotations = getRotations(loops);
+        }
+
+        /**
+         * Returns the number of canonical walks of length <tt>length</tt>
+         * from the root (on which it has the smallest index) whose throw
+         * heights are lexicographically smaller than the first
+         * <tt>length</tt> entries of <tt>w</tt>, which may be any
+         * non-negative numbers.
+         */
+        private long countBelow(int[] w, int length)
+        {
+            int[] u = new int[length];
+            int[] states = new int[length + 1];
+            if (!reduce(w, length, u, states))
+                return countCanonical(rotations, length);
+
+            // segments[l] is the number of segments of length l: they
+            // follow u for j throws, then make a smaller throw, and get
+            // back to the root without going through it
+            long[] segments = new long[length + 1];
+            for (int j = 0; j < length; j++)
+            {
+                int state = states[j];
+                if (state < root)
+                    break;
+                int end = graph.getEdgeEnd(state);
+                for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                {
+                    if (graph.getEdgeLabel(edge) >= u[j])
+                        break;
+                    int target = graph.getEdgeTarget(edge);
+                    if (target == root)
+                        segments[j + 1]++;
+                    else if (target > root)
+                        for (int l = 1; j + 1 + l <= length; l++)
+                            segments[j + 1 + l] += counts[l][target - root];
+                }
+            }
+
+            // sequences[m] is the number of sequences of segments with a
+            // total length of m
+            long[] sequences = new long[length + 1];
+            sequences[0] = 1;
+            for (int m = 1; m <= length; m++)
+                for (int l = 1; l <= m; l++)
+                    sequences[m] += segments[l] * sequences[m - l];
+
+            // every cycle with all rotations below u, once for each
+            // position in its period
+            long sum = 0;
+            for (int l = 1; l <= length; l++)
+                sum += l * segments[l] * sequences[length - l];
+
+            // without the repetitions of shorter canonical walks, each of
+            // which is below u if its first period is, or is equal to it
+            // but the repetition is smaller
+            for (int d = 1; d < length; d++)
+            {
+                if (length % d != 0)
+                    continue;
+                long repeated = countBelow(u, d);
+                if (isCanonical(u, states, d) && compareRepeated(u, d, length) < 0)
+                    repeated++;
+                sum -= d * repeated;
+            }
+            return sum / length;
+        }
+
+        /**
+         * Replaces the first <tt>length</tt> entries of <tt>w</tt> with the
+         * smallest walk from the root which isn't smaller, and isn't smaller
+         * than any of its rotations starting at the root, as far as they
+         * can be compared. The walk is written to <tt>u</tt> and its states
+         * to <tt>states</tt>.
+         *
+         * Only the longest prefix of the walk which is also a suffix
+         * starting at the root needs to be tracked (<tt>border</tt> is
+         * where that suffix starts, or 0 if there is none): the next throw
+         * may not be larger than the one after the prefix. It can always be
+         * equal, so any prefix which satisfies this can be completed.
+         *
+         * @return <tt>false</tt> if there is no such walk.
+         */
+        private boolean reduce(int[] w, int length, int[] u, int[] states)
+        {
+            int[] borders = new int[length];
+            int border = 0;
+            states[0] = root;
+            int i;
+            for (i = 0; i < length; i++)
+            {
+                borders[i] = border;
+                if (border > 0 && w[i] > u[i - border])
+                    break;
+                int edge = findEdge(states[i], w[i]);
+                if (edge < 0)
+                    break;
+                u[i] = w[i];
+                states[i + 1] = graph.getEdgeTarget(edge);
+                border = getBorder(u, states, i, border, length);
+            }
+            if (i == length)
+                return true;
+
+            // make the throw at the last possible position larger, and the
+            // rest as small as possible
+            for (int m = i; m >= 0; m--)
+            {
+                border = borders[m];
+                int bound = border > 0 ? u[m - border] : Integer.MAX_VALUE;
+                int edge = graph.getFirstEdge(states[m]);
+                int end = graph.getEdgeEnd(states[m]);
+                while (edge < end && graph.getEdgeLabel(edge) <= w[m])
+                    edge++;
+                if (edge == end || graph.getEdgeLabel(edge) > bound)
+                    continue;
+
+                for (int j = m; j < length; j++)
+                {
+                    if (j > m)
+                        edge = graph.getFirstEdge(states[j]);
+                    u[j] = graph.getEdgeLabel(edge);
+                    states[j + 1] = graph.getEdgeTarget(edge);
+                    border = getBorder(u, states, j, border, length);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the start of the longest suffix of <tt>u[0..i]</tt> which
+         * starts at the root and is a prefix of <tt>u</tt>, given that of
+         * <tt>u[0..i-1]</tt>, or 0 if there is none.
+         */
+        private int getBorder(int[] u, int[] states, int i, int border,
+                              int length)
+        {
+            if (border > 0 && u[i] < u[i - border])
+                border = 0;
+            if (border == 0 && states[i + 1] == root && i + 1 < length)
+                border = i + 1;
+            return border;
+        }
+
+        /**
+         * Checks whether the first <tt>d</tt> throws of <tt>u</tt> (with
+         * states <tt>states</tt>) are a canonical walk of length <tt>d</tt>.
+         */
+        private boolean isCanonical(int[] u, int[] states, int d)
+        {
+            if (states[d] != root)
+                return false;
+            for (int i = 1; i < d; i++)
+            {
+                if (states[i] < root)
+                    return false;
+            }
+            for (int i = 1; i < d; i++)
+            {
+                if (states[i] != root)
+                    continue;
+                for (int m = 0; m < d; m++)
+                {
+                    int diff = u[(i + m) % d] - u[m];
+                    if (diff > 0)
+                        return false;
+                    if (diff < 0)
+                        break;
+                    if (m == d - 1)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Compares the first <tt>d</tt> entries of <tt>u</tt>, repeated to
+         * length <tt>length</tt>, to the first <tt>length</tt> entries.
+         */
+        private int compareRepeated(int[] u, int d, int length)
+        {
+            for (int i = d; i < length; i++)
+            {
+                int diff = u[i % d] - u[i];
+                if (diff != 0)
+                    return diff;
+            }
+            return 0;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length != 5)
+        {
+            System.err.println("Usage: SiteswapRanker <balls> <max-height> "
+                    + "<period> <index-from> <index-to>");
+            return;
+        }
+        int balls = Integer.parseInt(args[0]);
+        int max_height = Integer.parseInt(args[1]);
+        int period = Integer.parseInt(args[2]);
+        long from = Long.parseLong(args[3]);
+        long to = Long.parseLong(args[4]);
+
+        SiteswapRanker ranker = new SiteswapRanker(balls, max_height, period);
+        System.err.println(ranker.size() + " siteswaps");
+        for (long index = from; index <= to && index < ranker.size(); index++)
+            System.out.println(index + " " + ranker.unrank(index));
+    }
+}
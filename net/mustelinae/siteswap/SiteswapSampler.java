@@ -0,0 +1,401 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Draws siteswaps with a given period from a <tt>StateGraph</tt> uniformly
+ * at random, without enumerating them.
+ *
+ * As in <tt>CycleEnumerator</tt>'s canonical mode, every siteswap has
+ * exactly one walk which represents it: the walk starts at the state with
+ * the smallest index on its cycle, and among the rotations which also start
+ * there it has the lexicographically largest throw heights. The sampler
+ * draws a walk uniformly from the closed walks of length <tt>period</tt> on
+ * which the root has the smallest index, and rejects it (and draws again)
+ * if it is not the representative of its cycle, or repeats a shorter one.
+ * Every siteswap is then accepted with the same probability.
+ *
+ * That probability is the number of siteswaps over <tt>getTotal()</tt>. A
+ * walk which visits its root <tt>k</tt> times is one of (up to) <tt>k</tt>
+ * rotations starting there, only one of which is accepted, so the rate
+ * depends on how often walks get back to their root. With many states and
+ * a short period it is high: about 97% at 7 balls and height 20 for periods
+ * 6 to 15, even though the ground state has a self-loop there. It is 84% at
+ * 5 balls, height 12, period 10, and 34% at 3 balls, height 10, period 20.
+ * In a graph with only a few states, most walks go through the root many
+ * times, and the rate tends to <tt>1/period</tt>: it is 7% at 1 ball,
+ * height 2, period 20. The siteswaps whose walks were rejected are drawn
+ * again in another round of the batch, so a batch of <tt>count</tt> takes
+ * about <tt>count</tt> over the rate walks.
+ *
+ * A walk is drawn one edge at a time. The root is chosen with a weight of
+ * the number of walks from it, computed once in the constructor with a DP
+ * like that of <tt>SiteswapCounter</tt>. For the chosen root, a DP over
+ * (state, remaining length) gives the number of ways to get back to the
+ * root from each state, which are the weights of the edges. The counts are
+ * kept as doubles, so the probabilities are exact up to rounding.
+ *
+ * The DP for a root takes time proportional to <tt>period</tt> times the
+ * number of edges, so batches (see <tt>sample(int, SplittableRandom)</tt>)
+ * choose their roots first and draw all walks from the same root together.
+ *
+ * Instances are immutable after construction and can be shared by several
+ * threads, each with its own <tt>SplittableRandom</tt>.
+ */
+public class SiteswapSampler
+{
+    private final StateGraph graph;
+    private final int period;
+
+    /**
+     * <tt>cumulative[r]</tt> is the number of closed walks of length
+     * <tt>period</tt> from the roots <tt>0</tt> to <tt>r</tt>, on which the
+     * root has the smallest index.
+     */
+    private final double[] cumulative;
+
+    public SiteswapSampler(StateGraph graph, int period)
+    {
+        if (period < 1)
+            throw new IllegalArgumentException("invalid period: " + period);
+        this.graph = graph;
+        this.period = period;
+        cumulative = getWalks();
+        if (Double.isInfinite(getTotal()))
+            throw new IllegalArgumentException("too many walks of length "
+                    + period);
+    }
+
+    public SiteswapSampler(int balls, int max_height, int period)
+    {
+        this(StateGraph.get(balls, max_height), period);
+    }
+
+    public int getPeriod()
+    {
+        return period;
+    }
+
+    /**
+     * Returns the number of walks the sampler draws from, which is an upper
+     * bound on the number of siteswaps with period <tt>period</tt>.
+     */
+    public double getTotal()
+    {
+        return cumulative.length == 0 ? 0 : cumulative[cumulative.length - 1];
+    }
+
+    /**
+     * Counts the closed walks from each root with a DP on (state, length),
+     * as <tt>SiteswapCounter</tt> does, and returns their cumulative sums.
+     */
+    private double[] getWalks()
+    {
+        int n = graph.size();
+        double[] ret = new double[n];
+        double[] cur = new double[n];
+        double[] next = new double[n];
+        double sum = 0;
+        for (int root = 0; root < n; root++)
+        {
+            cur[root] = 1;
+            // track the range of reached states to skip the rest
+            int low = root;
+            int high = root;
+            for (int length = 1; length <= period && low <= high; length++)
+            {
+                int next_low = n;
+                int next_high = -1;
+                for (int state = low; state <= high; state++)
+                {
+                    double count = cur[state];
+                    if (count == 0)
+                        continue;
+                    int end = graph.getEdgeEnd(state);
+                    for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                    {
+                        int target = graph.getEdgeTarget(edge);
+                        if (target < root)
+                            continue;
+                        next[target] += count;
+                        next_low = Math.min(next_low, target);
+                        next_high = Math.max(next_high, target);
+                    }
+                    cur[state] = 0;
+                }
+
+                double[] tmp = cur;
+                cur = next;
+                next = tmp;
+                low = next_low;
+                high = next_high;
+            }
+            if (low <= high)
+            {
+                sum += cur[root];
+                Arrays.fill(cur, low, high + 1, 0);
+            }
+            ret[root] = sum;
+        }
+        return ret;
+    }
+
+    /**
+     * Draws a root with a weight of the number of walks from it, or returns
+     * -1 if there are no walks.
+     */
+    private int drawRoot(SplittableRandom random)
+    {
+        double total = getTotal();
+        if (total == 0)
+            return -1;
+        double x = random.nextDouble() * total;
+        // the first root with cumulative[root] > x
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > x)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        // skip roots without walks, in case of rounding
+        while (low > 0 && cumulative[low] == cumulative[low - 1])
+            low--;
+        return low;
+    }
+
+    /**
+     * Fills <tt>counts[t][state]</tt> with the number of walks of length
+     * <tt>t</tt> from <tt>state</tt> to <tt>root</tt> which only go through
+     * states with an index of at least <tt>root</tt>.
+     */
+    private void fillCounts(int root, double[][] counts)
+    {
+        int n = graph.size();
+        Arrays.fill(counts[0], root, n, 0);
+        counts[0][root] = 1;
+        for (int t = 1; t <= period; t++)
+        {
+            double[] prev = counts[t - 1];
+            double[] cur = counts[t];
+            for (int state = root; state < n; state++)
+            {
+                double sum = 0;
+                int end = graph.getEdgeEnd(state);
+                for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+                {
+                    int target = graph.getEdgeTarget(edge);
+                    if (target >= root)
+                        sum += prev[target];
+                }
+                cur[state] = sum;
+            }
+        }
+    }
+
+    /**
+     * Draws a walk from <tt>root</tt> with the counts filled in by
+     * <tt>fillCounts</tt>, writing its throw heights to <tt>heights</tt>
+     * and its states to <tt>states</tt>. Returns <tt>true</tt> if it is the
+     * walk which represents its cycle.
+     */
+    private boolean drawWalk(int root, double[][] counts, int[] heights,
+                             int[] states, SplittableRandom random)
+    {
+        int state = root;
+        for (int d = 0; d < period; d++)
+        {
+            states[d] = state;
+            double[] weights = counts[period - d - 1];
+            double x = random.nextDouble() * counts[period - d][state];
+            int end = graph.getEdgeEnd(state);
+            int chosen = -1;
+            for (int edge = graph.getFirstEdge(state); edge < end; edge++)
+            {
+                int target = graph.getEdgeTarget(edge);
+                if (target < root || weights[target] == 0)
+                    continue;
+                chosen = edge;
+                x -= weights[target];
+                if (x < 0)
+                    break;
+            }
+            heights[d] = graph.getEdgeLabel(chosen);
+            state = graph.getEdgeTarget(chosen);
+        }
+        return isCanonical(root, heights, states);
+    }
+
+    /**
+     * Checks whether no other rotation of the walk which starts at the root
+     * has larger (or, for a repetition of a shorter cycle, the same) throw
+     * heights. See <tt>CycleEnumerator.isCanonical</tt>.
+     */
+    private boolean isCanonical(int root, int[] heights, int[] states)
+    {
+        for (int i = 1; i < period; i++)
+        {
+            if (states[i] == root && compareRotation(heights, i) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int compareRotation(int[] heights, int shift)
+    {
+        int j = shift;
+        for (int i = 0; i < period; i++)
+        {
+            int diff = heights[j] - heights[i];
+            if (diff != 0)
+                return diff;
+            if (++j == period)
+                j = 0;
+        }
+        return 0;
+    }
+
+    private double[][] newCounts()
+    {
+        return new double[period + 1][graph.size()];
+    }
+
+    /**
+     * Returns a random siteswap with period <tt>period</tt>, each one with
+     * the same probability, or <tt>null</tt> if there are none.
+     *
+     * Each call does the DP for a root, so use
+     * <tt>sample(int, SplittableRandom)</tt> to draw more than a few.
+     */
+    public Siteswap sample(SplittableRandom random)
+    {
+        Siteswap[] ret = sample(1, random);
+        return ret.length == 0 ? null : ret[0];
+    }
+
+    /**
+     * Returns <tt>count</tt> random siteswaps with period <tt>period</tt>,
+     * drawn independently and uniformly (so there may be duplicates), in
+     * random order. Returns an empty array if there are none.
+     */
+    public Siteswap[] sample(int count, SplittableRandom random)
+    {
+        if (count <= 0 || getTotal() == 0)
+            return new Siteswap[0];
+
+        Siteswap[] ret = new Siteswap[count];
+        double[][] counts = newCounts();
+        int[] heights = new int[period];
+        int[] states = new int[period];
+        int[] sequence = new int[period];
+        int[] roots = new int[count];
+        int size = 0;
+        while (size < count)
+        {
+            // draw a root for each siteswap still missing, and the walks
+            // from each root together
+            int missing = count - size;
+            for (int i = 0; i < missing; i++)
+                roots[i] = drawRoot(random);
+            Arrays.sort(roots, 0, missing);
+            for (int i = 0; i < missing; i++)
+            {
+                int root = roots[i];
+                if (i == 0 || root != roots[i - 1])
+                    fillCounts(root, counts);
+                if (drawWalk(root, counts, heights, states, random))
+                {
+                    Utils.normalize(heights, period, sequence);
+                    ret[size++] = new Siteswap(
+                            Arrays.copyOf(sequence, period), true);
+                }
+            }
+        }
+
+        // the walks were drawn by root, shuffle them
+        for (int i = count - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            Siteswap tmp = ret[i];
+            ret[i] = ret[j];
+            ret[j] = tmp;
+        }
+        return ret;
+    }
+
+    /**
+     * Like <tt>sample(int, SplittableRandom)</tt>, but draws the siteswaps
+     * with <tt>parallelism</tt> threads. Each thread draws a part of them,
+     * with a generator split from one seeded with <tt>seed</tt>, so the
+     * result only depends on the seed and <tt>parallelism</tt>.
+     */
+    public Siteswap[] sample(int count, long seed, int parallelism)
+    {
+        if (count <= 0 || getTotal() == 0)
+            return new Siteswap[0];
+
+        final Siteswap[] ret = new Siteswap[count];
+        int chunks = Math.max(1, Math.min(count, parallelism));
+        final int[] bounds = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++)
+            bounds[c] = (int) ((long) count * c / chunks);
+
+        SplittableRandom random = new SplittableRandom(seed);
+        ForkJoinPool pool = new ForkJoinPool(chunks);
+        try
+        {
+            RecursiveAction[] tasks = new RecursiveAction[chunks];
+            for (int c = 0; c < chunks; c++)
+            {
+                final int chunk = c;
+                final SplittableRandom chunk_random = random.split();
+                tasks[c] = new RecursiveAction()
+                {
+                    @Override
+                    protected void compute()
+                    {
+                        Siteswap[] part = sample(
+                                bounds[chunk + 1] - bounds[chunk],
+                                chunk_random);
+                        System.arraycopy(part, 0, ret, bounds[chunk],
+                                         part.length);
+                    }
+                };
+                pool.execute(tasks[c]);
+            }
+            for (RecursiveAction task : tasks)
+                task.join();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return ret;
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length < 4 || args.length > 6)
+        {
+            System.err.println("Usage: SiteswapSampler <balls> <max-height> "
+                    + "<period> <count> [<seed> [<threads>]]");
+            return;
+        }
+        int balls = Integer.parseInt(args[0]);
+        int max_height = Integer.parseInt(args[1]);
+        int period = Integer.parseInt(args[2]);
+        int count = Integer.parseInt(args[3]);
+        long seed = args.length > 4
+                ? Long.parseLong(args[4]) : System.nanoTime();
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        SiteswapSampler sampler
+                = new SiteswapSampler(balls, max_height, period);
+        for (Siteswap siteswap : sampler.sample(count, seed, threads))
+            System.out.println(siteswap);
+    }
+}
@@ -0,0 +1,198 @@
+package net.mustelinae.siteswap;
+
+import java.util.*;
+
+/**
+ * A set of siteswaps which stores them as packed primitive keys (see
+ * <tt>PackedSiteswap</tt>) in open-addressing tables, instead of as
+ * <tt>Siteswap</tt> objects in a <tt>HashSet</tt>. Sequences are
+ * normalized when they are added, so rotations and repetitions of a
+ * siteswap are all the same element. Empty sequences are never added.
+ *
+ * Not thread-safe.
+ */
+public class SiteswapSet
+{
+    /**
+     * The keys of the siteswaps which fit in a single <tt>long</tt>.
+     */
+    private final LongHashSet narrow = new LongHashSet();
+
+    /**
+     * The wide keys of the rest, one table per key size (in
+     * <tt>long</tt>s).
+     */
+    private WideTable[] wide = new WideTable[0];
+
+    private int size = 0;
+
+    /**
+     * Scratch space for normalizing and packing.
+     */
+    private int[] normalized = new int[16];
+    private long[] key = new long[4];
+
+    /**
+     * Adds the siteswap with throw heights <tt>a[0]</tt> to
+     * <tt>a[len-1]</tt>.
+     * @return <tt>true</tt> if it wasn't in the set already
+     */
+    public boolean add(int[] a, int len)
+    {
+        return lookup(a, len, true);
+    }
+
+    public boolean add(Siteswap siteswap)
+    {
+        int[] a = siteswap.getSequence();
+        return add(a, a.length);
+    }
+
+    /**
+     * Checks whether the siteswap with throw heights <tt>a[0]</tt> to
+     * <tt>a[len-1]</tt> is in the set.
+     */
+    public boolean contains(int[] a, int len)
+    {
+        return lookup(a, len, false);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Looks up the normalized form of <tt>a[0..len-1]</tt>, adding it if
+     * <tt>add</tt> is set.
+     * @return whether it was added (if <tt>add</tt> is set), or whether it
+     * was found (otherwise)
+     */
+    private boolean lookup(int[] a, int len, boolean add)
+    {
+        if (len == 0)
+            return false;
+        if (normalized.length < len)
+            normalized = new int[len];
+        len = Utils.normalize(a, len, normalized);
+
+        if (PackedSiteswap.isNarrow(normalized, len))
+        {
+            long k = PackedSiteswap.pack(normalized, len);
+            if (!add)
+                return narrow.contains(k);
+            if (!narrow.add(k))
+                return false;
+            size++;
+            return true;
+        }
+
+        int width = PackedSiteswap.wideSize(len);
+        if (key.length < width)
+            key = new long[width];
+        PackedSiteswap.packWide(normalized, len, key, 0);
+
+        if (wide.length <= width)
+            wide = Arrays.copyOf(wide, width + 1);
+        if (wide[width] == null)
+        {
+            if (!add)
+                return false;
+            wide[width] = new WideTable(width);
+        }
+        if (!add)
+            return wide[width].contains(key);
+        if (!wide[width].add(key))
+            return false;
+        size++;
+        return true;
+    }
+
+    /**
+     * An open-addressing hash set of fixed-size keys of <tt>width</tt>
+     * <tt>long</tt>s, stored one after the other in a flat array. The first
+     * <tt>long</tt> of a wide key is the length of the sequence, which is
+     * never 0, so 0 marks an empty slot.
+     */
+    private static class WideTable
+    {
+        private final int width;
+        private long[] slots;
+        private int capacity = 16;
+        private int size = 0;
+
+        WideTable(int width)
+        {
+            this.width = width;
+            slots = new long[capacity * width];
+        }
+
+        boolean contains(long[] key)
+        {
+            return find(slots, capacity, key) >= 0;
+        }
+
+        boolean add(long[] key)
+        {
+            if ((size + 1) * 2 > capacity)
+                rehash();
+
+            int slot = find(slots, capacity, key);
+            if (slot >= 0)
+                return false;
+            System.arraycopy(key, 0, slots, (-slot - 1) * width, width);
+            size++;
+            return true;
+        }
+
+        /**
+         * Returns the slot holding <tt>key</tt>, or <tt>-(slot+1)</tt> for
+         * the empty slot where it would go.
+         */
+        private int find(long[] table, int capacity, long[] key)
+        {
+            int mask = capacity - 1;
+            int slot = hash(key, 0) & mask;
+            while (table[slot * width] != 0)
+            {
+                if (equals(table, slot * width, key, 0))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            return -slot - 1;
+        }
+
+        private void rehash()
+        {
+            long[] old = slots;
+            int old_capacity = capacity;
+            capacity *= 2;
+            slots = new long[capacity * width];
+            long[] key = new long[width];
+            for (int i = 0; i < old_capacity; i++)
+            {
+                if (old[i * width] == 0)
+                    continue;
+                System.arraycopy(old, i * width, key, 0, width);
+                int slot = find(slots, capacity, key);
+                System.arraycopy(key, 0, slots, (-slot - 1) * width, width);
+            }
+        }
+
+        private boolean equals(long[] a, int offset, long[] key, int key_offset)
+        {
+            for (int i = 0; i < width; i++)
+                if (a[offset + i] != key[key_offset + i])
+                    return false;
+            return true;
+        }
+
+        private int hash(long[] key, int offset)
+        {
+            long h = 0;
+            for (int i = 0; i < width; i++)
+                h = h * 0x9e3779b97f4a7c15L + key[offset + i];
+            return LongIntMap.hash(h);
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Answers queries on a file written by <tt>SiteswapTrieWriter</tt> (see
+ * there for the format). The file is memory-mapped and queried in place,
+ * so opening it takes no time and memory regardless of its size, and a
+ * query only touches a few pages per throw of the siteswap asked about.
+ *
+ * The siteswaps are ordered lexicographically by their throw heights (a
+ * proper prefix of a sequence coming before it), and each can be found by
+ * its rank in that order. Queries take the sequences as given; to look a
+ * siteswap up, pass it in normalized form (see <tt>Utils.normalize</tt>),
+ * which is how <tt>Generator</tt> produces them.
+ *
+ * Queries are thread-safe.
+ */
+public class SiteswapTrie
+{
+    private final int balls;
+    private final int max_height;
+    private final long size;
+    private final int nodes;
+    private final long dfuds_size;
+
+    private final LongBuffer dfuds;
+    private final IntBuffer zeros;
+    private final IntBuffer excess_tree;
+    private final ByteBuffer word_minima;
+    private final ByteBuffer labels;
+    private final LongBuffer terminal;
+    private final IntBuffer terminal_ranks;
+
+    /**
+     * <tt>MIN_EXCESS[b]</tt> is the minimum of the excess of ones over zeros
+     * after each bit of the byte <tt>b</tt>, from its lowest bit.
+     */
+    private static final byte[] MIN_EXCESS = getMinExcess();
+
+    public SiteswapTrie(Path file)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            if (channel.size() < SiteswapTrieWriter.HEADER_SIZE)
+                throw new IOException("not a siteswap trie: " + file);
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                            SiteswapTrieWriter.HEADER_SIZE);
+            if (header.getInt() != SiteswapTrieWriter.MAGIC)
+                throw new IOException("not a siteswap trie: " + file);
+            int version = header.getInt();
+            if (version != SiteswapTrieWriter.VERSION)
+                throw new IOException("unsupported version: " + version);
+            balls = header.getInt();
+            max_height = header.getInt();
+            size = header.getLong();
+            long node_count = header.getLong();
+            dfuds_size = header.getLong();
+            if (node_count < 1 || node_count > Integer.MAX_VALUE / 2
+                    || dfuds_size != 2 * node_count)
+                throw new IOException("invalid header: " + file);
+            nodes = (int) node_count;
+
+            long words = (dfuds_size + 63) / 64;
+            int blocks = SiteswapTrieWriter.getBlocks(dfuds_size);
+            long tree_size = 8L * SiteswapTrieWriter.getTreeLeaves(blocks);
+            long position = SiteswapTrieWriter.HEADER_SIZE;
+            dfuds = map(channel, position, 8 * words).asLongBuffer();
+            position += SiteswapTrieWriter.align(8 * words);
+            zeros = map(channel, position, 4L * (blocks + 1)).asIntBuffer();
+            position += SiteswapTrieWriter.align(4L * (blocks + 1));
+            excess_tree = map(channel, position, tree_size).asIntBuffer();
+            position += SiteswapTrieWriter.align(tree_size);
+            word_minima = map(channel, position, words);
+            position += SiteswapTrieWriter.align(words);
+            labels = map(channel, position, nodes - 1);
+            position += SiteswapTrieWriter.align(nodes - 1);
+            long terminal_words = (nodes + 63) / 64;
+            terminal = map(channel, position, 8 * terminal_words).asLongBuffer();
+            position += SiteswapTrieWriter.align(8 * terminal_words);
+            int terminal_blocks = SiteswapTrieWriter.getBlocks(nodes);
+            terminal_ranks = map(channel, position, 4L * (terminal_blocks + 1))
+                    .asIntBuffer();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("invalid header: " + file);
+        }
+    }
+
+    /**
+     * Maps a section of the file. The mapping stays valid after the
+     * channel is closed.
+     */
+    private static ByteBuffer map(FileChannel channel, long position,
+                                  long size)
+            throws IOException
+    {
+        if (size > Integer.MAX_VALUE || position + size > channel.size())
+            throw new IOException("truncated or too large file");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    public int getBalls()
+    {
+        return balls;
+    }
+
+    public int getMaxHeight()
+    {
+        return max_height;
+    }
+
+    /**
+     * Returns the number of siteswaps in the trie.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Checks whether the sequence <tt>a[0..len-1]</tt> is in the trie.
+     */
+    public boolean contains(int[] a, int len)
+    {
+        int node = find(a, len);
+        return node >= 0 && isTerminal(node);
+    }
+
+    /**
+     * Returns the number of siteswaps in the trie which are
+     * lexicographically smaller than <tt>a[0..len-1]</tt>. If the sequence
+     * is in the trie, this is its rank (counting from 0).
+     *
+     * The sequence is compared as it is, so to get the rank of a siteswap
+     * it must be normalized (see <tt>Utils.normalize</tt>) first, like the
+     * ones in the trie.
+     */
+    public long rank(int[] a, int len)
+    {
+        int node = 0;
+        long start = 1;
+        for (int i = 0; i < len; i++)
+        {
+            // the first child with a label which isn't smaller, or the end
+            // of the subtree if there is none, since that is where the
+            // subtree of the last child ends
+            int degree = getDegree(start);
+            int child = node + 1;
+            long child_start = start + degree + 1;
+            int j = 0;
+            while (j < degree && getLabel(child) < a[i])
+            {
+                long end = getSubtreeEnd(child, child_start);
+                child += getSize(child_start, end);
+                child_start = end;
+                j++;
+            }
+            if (j == degree || getLabel(child) != a[i])
+                return getBefore(child);
+            node = child;
+            start = child_start;
+        }
+        return getBefore(node);
+    }
+
+    /**
+     * Returns the number of siteswaps in the trie which start with
+     * <tt>prefix[0..len-1]</tt>.
+     */
+    public long count(int[] prefix, int len)
+    {
+        int node = find(prefix, len);
+        if (node < 0)
+            return 0;
+        long start = getStart(node);
+        long end = getSubtreeEnd(node, start);
+        return getBefore(node + getSize(start, end)) - getBefore(node);
+    }
+
+    /**
+     * Reads the siteswap with rank <tt>rank</tt> (see <tt>rank</tt>) into
+     * <tt>out</tt>, which must have room for it.
+     * @return the length of the siteswap
+     */
+    public int get(long rank, int[] out)
+    {
+        if (rank < 0 || rank >= size)
+            throw new IndexOutOfBoundsException("no siteswap " + rank);
+
+        int node = 0;
+        long start = 1;
+        int len = 0;
+        while (!isTerminal(node) || getBefore(node) != rank)
+        {
+            // the last child whose siteswaps don't all come after it
+            int degree = getDegree(start);
+            int child = node + 1;
+            long child_start = start + degree + 1;
+            for (int j = 1; j < degree; j++)
+            {
+                long end = getSubtreeEnd(child, child_start);
+                int next = child + getSize(child_start, end);
+                if (getBefore(next) > rank)
+                    break;
+                child = next;
+                child_start = end;
+            }
+            out[len++] = getLabel(child);
+            node = child;
+            start = child_start;
+        }
+        return len;
+    }
+
+    /**
+     * Passes the siteswaps which start with <tt>prefix[0..len-1]</tt> to
+     * <tt>handler</tt>, in order, until it returns <tt>false</tt>. The array
+     * passed to the handler is reused.
+     * @return the number of siteswaps passed to the handler
+     */
+    public long forEach(int[] prefix, int len, SequenceHandler handler)
+    {
+        int node = find(prefix, len);
+        if (node < 0)
+            return 0;
+
+        int[] sequence = new int[Math.max(16, len)];
+        System.arraycopy(prefix, 0, sequence, 0, len);
+
+        // the nodes of the subtree come one after another, and so do their
+        // bits: pending[d] is the number of children of the node at depth
+        // len+d on the path which haven't been visited yet
+        int[] pending = new int[16];
+        int depth = 0;
+        long position = getStart(node);
+        long count = 0;
+        while (true)
+        {
+            if (isTerminal(node))
+            {
+                count++;
+                if (!handler.handle(sequence, len + depth))
+                    return count;
+            }
+
+            int degree = getDegree(position);
+            position += degree + 1;
+            if (depth == pending.length)
+                pending = Arrays.copyOf(pending, depth * 2);
+            pending[depth] = degree;
+
+            // the next node is a child of the closest node on the path which
+            // has children left
+            while (depth >= 0 && pending[depth] == 0)
+                depth--;
+            if (depth < 0)
+                return count;
+            pending[depth]--;
+            depth++;
+            node++;
+
+            if (len + depth > sequence.length)
+                sequence = Arrays.copyOf(sequence, sequence.length * 2);
+            sequence[len + depth - 1] = getLabel(node);
+        }
+    }
+
+    /**
+     * Returns the node at the end of the path <tt>a[0..len-1]</tt>, or -1
+     * if there is no such path.
+     */
+    private int find(int[] a, int len)
+    {
+        int node = 0;
+        long start = 1;
+        for (int i = 0; i < len; i++)
+        {
+            int degree = getDegree(start);
+            int child = node + 1;
+            long child_start = start + degree + 1;
+            int j = 0;
+            while (j < degree && getLabel(child) < a[i])
+            {
+                long end = getSubtreeEnd(child, child_start);
+                child += getSize(child_start, end);
+                child_start = end;
+                j++;
+            }
+            if (j == degree || getLabel(child) != a[i])
+                return -1;
+            node = child;
+            start = child_start;
+        }
+        return node;
+    }
+
+    private boolean isTerminal(int node)
+    {
+        return (terminal.get(node >>> 6) & (1L << (node & 63))) != 0;
+    }
+
+    /**
+     * Returns the label of the edge to <tt>node</tt>, which isn't the root.
+     */
+    private int getLabel(int node)
+    {
+        return labels.get(node - 1) & 0xff;
+    }
+
+    /**
+     * Returns the number of siteswaps which come before those starting with
+     * the path to <tt>node</tt>, i.e. the number of terminal nodes before
+     * it (or before the end, if <tt>node</tt> is the number of nodes).
+     */
+    private long getBefore(int node)
+    {
+        int block = node / SiteswapTrieWriter.BLOCK_BITS;
+        long count = terminal_ranks.get(block) & 0xffffffffL;
+        int word = node >>> 6;
+        for (int w = block * (SiteswapTrieWriter.BLOCK_BITS / 64); w < word; w++)
+            count += Long.bitCount(terminal.get(w));
+        if ((node & 63) != 0)
+            count += Long.bitCount(terminal.get(word)
+                                   & ((1L << (node & 63)) - 1));
+        return count;
+    }
+
+    /**
+     * Returns the position of the bits of <tt>node</tt> in the DFUDS
+     * sequence, which start after the one at the beginning and the bits of
+     * the nodes before it, each of which ends with a zero.
+     */
+    private long getStart(int node)
+    {
+        return node == 0 ? 1 : selectZero(node - 1) + 1;
+    }
+
+    /**
+     * Returns the number of children of the node whose bits start at
+     * <tt>position</tt>, i.e. the number of ones before the next zero.
+     */
+    private int getDegree(long position)
+    {
+        long start = position;
+        long word = ~dfuds.get((int) (position >>> 6)) >>> (position & 63);
+        while (word == 0)
+        {
+            position = (position | 63) + 1;
+            word = ~dfuds.get((int) (position >>> 6));
+        }
+        position += Long.numberOfTrailingZeros(word);
+        return (int) (position - start);
+    }
+
+    /**
+     * Returns the end of the bits of the subtree of <tt>node</tt>, whose
+     * bits start at <tt>start</tt>. This is where the bits of the next node
+     * in depth-first order start, the first child of a node starting after
+     * its own bits.
+     */
+    private long getSubtreeEnd(int node, long start)
+    {
+        // the bits of the subtree have one more zero than ones, and it ends
+        // at the first point where the excess drops below that at its
+        // start, which has 'node' zeros before it
+        return findExcess(start, (int) (start - 2L * node) - 1);
+    }
+
+    /**
+     * Returns the number of nodes in a subtree whose bits are from
+     * <tt>start</tt> to <tt>end</tt>, of which there are one less than
+     * twice as many.
+     */
+    private static int getSize(long start, long end)
+    {
+        return (int) ((end - start + 1) / 2);
+    }
+
+    /**
+     * Returns the first position after <tt>position</tt> at which the
+     * excess of ones over zeros before it is <tt>target</tt>, which must be
+     * one less than the excess at <tt>position</tt>. If there is none, which
+     * can't happen in a valid file, returns the length of the sequence.
+     */
+    private long findExcess(long position, int target)
+    {
+        // first look in the rest of the block, then find the next block
+        // which gets down to the target in the tree
+        int block = (int) (position / SiteswapTrieWriter.BLOCK_BITS);
+        long end = scanExcess(position, target + 1, target);
+        if (end >= 0)
+            return end;
+
+        int leaves = excess_tree.limit() / 2;
+        int node = leaves + block;
+        while (node > 1 && ((node & 1) != 0
+                            || excess_tree.get(node + 1) > target))
+            node >>>= 1;
+        if (node == 1)
+            return dfuds_size;
+        node++;
+        while (node < leaves)
+        {
+            node *= 2;
+            if (excess_tree.get(node) > target)
+                node++;
+        }
+
+        block = node - leaves;
+        position = (long) block * SiteswapTrieWriter.BLOCK_BITS;
+        end = scanExcess(position, (int) (position - 2L * zeros.get(block)),
+                         target);
+        return end >= 0 ? end : dfuds_size;
+    }
+
+    /**
+     * Like <tt>findExcess</tt>, but only looks until the end of the block
+     * which contains <tt>position</tt>, where the excess is
+     * <tt>excess</tt>, and returns -1 if the target isn't reached there.
+     */
+    private long scanExcess(long position, int excess, int target)
+    {
+        long end = Math.min((position / SiteswapTrieWriter.BLOCK_BITS + 1)
+                            * SiteswapTrieWriter.BLOCK_BITS, dfuds_size);
+        while (position < end)
+        {
+            int w = (int) (position >>> 6);
+            long word = dfuds.get(w);
+            long word_end = Math.min((position | 63) + 1, end);
+            // skip whole words, and then bytes, which stay above the target
+            if ((position & 63) == 0 && word_end - position == 64
+                    && excess + word_minima.get(w) > target)
+            {
+                excess += 2 * Long.bitCount(word) - 64;
+                position = word_end;
+                continue;
+            }
+            while (position < word_end)
+            {
+                int shift = (int) (position & 63);
+                if ((shift & 7) == 0 && position + 8 <= word_end)
+                {
+                    int b = (int) (word >>> shift) & 0xff;
+                    if (excess + MIN_EXCESS[b] > target)
+                    {
+                        excess += 2 * Integer.bitCount(b) - 8;
+                        position += 8;
+                        continue;
+                    }
+                }
+                excess += (word & (1L << shift)) != 0 ? 1 : -1;
+                position++;
+                if (excess == target)
+                    return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the zero with index <tt>i</tt> (counting from
+     * 0) in the DFUDS sequence.
+     */
+    private long selectZero(int i)
+    {
+        // the last block with at most 'i' zeros before it
+        int lo = 0;
+        int hi = zeros.limit() - 2;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (zeros.get(mid) <= i)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        int rest = i - zeros.get(lo);
+        int w = lo * (SiteswapTrieWriter.BLOCK_BITS / 64);
+        while (true)
+        {
+            long word = ~dfuds.get(w);
+            int count = Long.bitCount(word);
+            if (rest < count)
+                return 64L * w + select(word, rest);
+            rest -= count;
+            w++;
+        }
+    }
+
+    /**
+     * Returns the position of the set bit with index <tt>i</tt> (counting
+     * from 0) in <tt>word</tt>.
+     */
+    private static int select(long word, int i)
+    {
+        for (; i > 0; i--)
+            word &= word - 1;
+        return Long.numberOfTrailingZeros(word);
+    }
+
+    private static byte[] getMinExcess()
+    {
+        byte[] ret = new byte[256];
+        for (int b = 0; b < 256; b++)
+        {
+            int excess = 0;
+            int min = 8;
+            for (int i = 0; i < 8; i++)
+            {
+                excess += (b & (1 << i)) != 0 ? 1 : -1;
+                min = Math.min(min, excess);
+            }
+            ret[b] = (byte) min;
+        }
+        return ret;
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length != 3 || !("contains".equals(args[1])
+                || "rank".equals(args[1]) || "prefix".equals(args[1])))
+        {
+            System.err.println("Usage: SiteswapTrie <filename> "
+                    + "<'contains' | 'rank' | 'prefix'> <siteswap>");
+            return;
+        }
+
+        int[] a = "-".equals(args[2]) ? new int[0]
+                : Utils.stringToArray(args[2]);
+        if (a == null)
+        {
+            System.err.println("Invalid siteswap: " + args[2]);
+            return;
+        }
+
+        try
+        {
+            SiteswapTrie trie = new SiteswapTrie(Paths.get(args[0]));
+            if ("contains".equals(args[1]))
+            {
+                a = Utils.normalize(a);
+                System.out.println(trie.contains(a, a.length));
+            }
+            else if ("rank".equals(args[1]))
+            {
+                // the trie has normalized siteswaps, so rank any rotation
+                // of one the same
+                a = Utils.normalize(a);
+                System.out.println(trie.rank(a, a.length));
+            }
+            else
+            {
+                final SiteswapWriter writer = new SiteswapWriter();
+                trie.forEach(a, a.length, writer);
+                writer.flush();
+            }
+        }
+        catch (NoSuchFileException e)
+        {
+            System.err.println("Could not open file: "+args[0]);
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        catch (UncheckedIOException e)
+        {
+            System.err.println("IOException: "+e.getCause());
+        }
+    }
+}
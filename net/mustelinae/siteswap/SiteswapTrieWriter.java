@@ -0,0 +1,489 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Collects siteswaps and writes them to a file as a sorted trie, which
+ * <tt>SiteswapTrie</tt> queries in place.
+ *
+ * The trie is stored in DFUDS form (depth-first unary degree sequence):
+ * the nodes are numbered in depth-first order, with the children of a
+ * node ordered by their throw height, and the tree is described by a one
+ * followed by a sequence of bits with <tt>d</tt> ones and a zero for each
+ * node with <tt>d</tt> children. Read as parentheses (a one opening and a
+ * zero closing), the bits of a subtree and a one before them are
+ * balanced, so the end of a subtree is found by searching for the first
+ * position where the excess of ones over zeros drops below that at its
+ * start. This takes a directory of the number of zeros before each block
+ * of <tt>BLOCK_BITS</tt> bits, a binary tree of the minimum excess in the
+ * blocks, and the minimum excess in each word, so that a search only
+ * looks at a few bytes of the two blocks it starts and ends in. The first
+ * child of a node is the next node, and the next sibling of a node comes
+ * after its subtree. Prefixes shared by several siteswaps are stored once.
+ *
+ * Since the nodes are in the order of the siteswaps, the number of
+ * siteswaps which are lexicographically smaller than those starting with
+ * the path to a node is the number of terminal nodes before it, which is
+ * counted with a directory of the number of terminal nodes before each
+ * block and the popcounts of the words after it.
+ *
+ * The file starts with a header:
+ * <pre>
+ *     int   MAGIC
+ *     int   VERSION
+ *     int   balls
+ *     int   max height
+ *     long  number of siteswaps
+ *     long  number of nodes (N)
+ *     long  number of bits in the DFUDS sequence (2N)
+ *     long  unused
+ * </pre>
+ * followed by these sections (big-endian, each starting at a multiple of
+ * 8 bytes):
+ * <pre>
+ *     long[] the DFUDS bits, the first bit being the lowest of the first word
+ *     int[]  the number of zeros before each block, and in all of them
+ *     int[]  the minimum excess after a bit of each block, as a heap with
+ *            the root at index 1 and a power of two leaves, the ones
+ *            without a block being Integer.MAX_VALUE
+ *     byte[] the minimum excess after a bit of each word, relative to the
+ *            excess at its start
+ *     byte[] for each node but the root, the label (throw height) of the
+ *            edge to it
+ *     long[] one bit per node, set if the path to it is a siteswap
+ *     int[]  the number of set bits before each block of those, and in
+ *            all of them
+ * </pre>
+ * This takes about 12 bits per node, 8 of which are the label.
+ *
+ * The siteswaps are kept in memory (one byte per throw) until
+ * <tt>close</tt> sorts them and writes the file. Duplicates are only
+ * stored once.
+ */
+public class SiteswapTrieWriter
+    implements SequenceHandler
+{
+    public static final int MAGIC = 0x53535754; // "SSWT"
+    public static final int VERSION = 2;
+
+    /**
+     * The size of the header, in bytes.
+     */
+    static final int HEADER_SIZE = 48;
+
+    /**
+     * The number of bits in a block of the directories.
+     */
+    static final int BLOCK_BITS = 512;
+
+    private final FileChannel channel;
+    private final int balls;
+    private final int max_height;
+
+    /**
+     * The throws of all siteswaps, one after another.
+     */
+    private byte[] data = new byte[1 << 16];
+    private int data_size = 0;
+
+    /**
+     * Where each siteswap starts in <tt>data</tt>, followed by the end of
+     * the last one.
+     */
+    private int[] starts = new int[1 << 12];
+    private int count = 0;
+
+    public SiteswapTrieWriter(FileChannel channel, int balls, int max_height)
+    {
+        if (max_height < 0 || max_height > 255)
+            throw new IllegalArgumentException("max height out of range: "
+                    + max_height);
+        this.channel = channel;
+        this.balls = balls;
+        this.max_height = max_height;
+    }
+
+    /**
+     * Adds a siteswap. Throws an <tt>UncheckedIOException</tt> if it can't
+     * be stored.
+     */
+    @Override
+    public boolean handle(int[] sequence, int length)
+    {
+        try
+        {
+            add(sequence, length);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the siteswap with throw heights <tt>sequence[0]</tt> to
+     * <tt>sequence[length-1]</tt>, which should be in normalized form.
+     */
+    public void add(int[] sequence, int length)
+            throws IOException
+    {
+        if ((long) data_size + length > Integer.MAX_VALUE - 8
+                || count == Integer.MAX_VALUE - 8)
+            throw new IOException("too many siteswaps");
+        if (data_size + length > data.length)
+            data = Arrays.copyOf(data,
+                    (int) Math.min(Integer.MAX_VALUE - 8,
+                                   Math.max(data_size + length,
+                                            2L * data.length)));
+        if (count + 2 > starts.length)
+            starts = Arrays.copyOf(starts,
+                    (int) Math.min(Integer.MAX_VALUE - 8, 2L * starts.length));
+
+        for (int i = 0; i < length; i++)
+        {
+            int height = sequence[i];
+            if (height < 0 || height > max_height)
+                throw new IOException("throw out of range: " + height);
+            data[data_size++] = (byte) height;
+        }
+        starts[count++] = data_size - length;
+        starts[count] = data_size;
+    }
+
+    /**
+     * Returns the number of siteswaps added so far.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    private int length(int key)
+    {
+        return starts[key + 1] - starts[key];
+    }
+
+    private int get(int key, int i)
+    {
+        return data[starts[key] + i] & 0xff;
+    }
+
+    /**
+     * Compares two siteswaps lexicographically, a proper prefix being
+     * smaller.
+     */
+    private int compare(int a, int b)
+    {
+        int len_a = length(a);
+        int len_b = length(b);
+        int len = Math.min(len_a, len_b);
+        for (int i = 0; i < len; i++)
+        {
+            int d = get(a, i) - get(b, i);
+            if (d != 0)
+                return d;
+        }
+        return len_a - len_b;
+    }
+
+    /**
+     * Returns the indices of the distinct siteswaps, in sorted order.
+     */
+    private int[] sort()
+    {
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = i;
+
+        // bottom-up merge sort, which needs no comparator objects
+        int[] tmp = new int[count];
+        for (int width = 1; width < count; width *= 2)
+        {
+            for (int lo = 0; lo < count; lo += 2 * width)
+            {
+                int mid = Math.min(lo + width, count);
+                int hi = Math.min(lo + 2 * width, count);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi)
+                    tmp[k++] = compare(keys[j], keys[i]) < 0
+                            ? keys[j++] : keys[i++];
+                while (i < mid)
+                    tmp[k++] = keys[i++];
+                while (j < hi)
+                    tmp[k++] = keys[j++];
+            }
+            int[] t = keys;
+            keys = tmp;
+            tmp = t;
+        }
+
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+            if (distinct == 0 || compare(keys[distinct - 1], keys[i]) != 0)
+                keys[distinct++] = keys[i];
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * Sorts the siteswaps, writes the trie and closes the channel.
+     */
+    public void close()
+            throws IOException
+    {
+        int[] keys = sort();
+        int n = keys.length;
+        data_size = 0;
+
+        BitList dfuds = new BitList();
+        BitList terminal = new BitList();
+        ByteArrayOutputStream labels = new ByteArrayOutputStream();
+
+        // the nodes still to visit, as the ranges of the sorted keys
+        // starting with the path to them and its length, the last one
+        // being the next in depth-first order
+        IntList lo = new IntList();
+        IntList hi = new IntList();
+        IntList depths = new IntList();
+        lo.add(0);
+        hi.add(n);
+        depths.add(0);
+        dfuds.add(true);
+        while (lo.size > 0)
+        {
+            int l = lo.remove();
+            int h = hi.remove();
+            int depth = depths.remove();
+            if (depth > 0)
+                labels.write(get(keys[l], depth - 1));
+            // a key ending here sorts before the longer ones
+            boolean ends = l < h && length(keys[l]) == depth;
+            terminal.add(ends);
+            if (ends)
+                l++;
+
+            // push the children from the last one, so that they are
+            // visited in the order of their labels
+            int m = h;
+            while (m > l)
+            {
+                int label = get(keys[m - 1], depth);
+                int k = m - 1;
+                while (k > l && get(keys[k - 1], depth) == label)
+                    k--;
+                dfuds.add(true);
+                lo.add(k);
+                hi.add(m);
+                depths.add(depth + 1);
+                m = k;
+            }
+            dfuds.add(false);
+        }
+        data = null;
+        starts = null;
+
+        write(n, terminal.size, dfuds, terminal, labels.toByteArray());
+        channel.close();
+    }
+
+    private void write(long keys, long nodes, BitList dfuds, BitList terminal,
+                       byte[] labels)
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(balls).putInt(max_height)
+                .putLong(keys).putLong(nodes).putLong(dfuds.size).putLong(0);
+        header.flip();
+        long position = write(header, 0);
+
+        position = write(dfuds.toBuffer(), position);
+        position = write(getDirectory(dfuds, false), position);
+        position = write(getExcessTree(dfuds), position);
+        position = write(getWordMinima(dfuds), position);
+
+        ByteBuffer label_buffer = ByteBuffer.allocate(align(labels.length));
+        label_buffer.put(labels).clear();
+        position = write(label_buffer, position);
+
+        position = write(terminal.toBuffer(), position);
+        write(getDirectory(terminal, true), position);
+    }
+
+    /**
+     * Returns the number of ones (or zeros) before each block of
+     * <tt>bits</tt>, and in all of them.
+     */
+    private static ByteBuffer getDirectory(BitList bits, boolean ones)
+    {
+        int blocks = getBlocks(bits.size);
+        ByteBuffer directory = ByteBuffer.allocate(align(4L * (blocks + 1)));
+        long count = 0;
+        for (int b = 0; b <= blocks; b++)
+        {
+            directory.putInt((int) count);
+            if (b < blocks)
+            {
+                long from = (long) b * BLOCK_BITS;
+                long to = Math.min(from + BLOCK_BITS, bits.size);
+                int set = bits.countOnes(from, to);
+                count += ones ? set : to - from - set;
+            }
+        }
+        directory.clear();
+        return directory;
+    }
+
+    /**
+     * Returns the tree of the minimum excess in each block of
+     * <tt>bits</tt> (see the section in the class comment).
+     */
+    private static ByteBuffer getExcessTree(BitList bits)
+    {
+        int leaves = getTreeLeaves(getBlocks(bits.size));
+        int[] tree = new int[2 * leaves];
+        Arrays.fill(tree, leaves, 2 * leaves, Integer.MAX_VALUE);
+        int excess = 0;
+        for (long i = 0; i < bits.size; i++)
+        {
+            excess += bits.get(i) ? 1 : -1;
+            int leaf = leaves + (int) (i / BLOCK_BITS);
+            tree[leaf] = Math.min(tree[leaf], excess);
+        }
+        for (int node = leaves - 1; node > 0; node--)
+            tree[node] = Math.min(tree[2 * node], tree[2 * node + 1]);
+
+        ByteBuffer buffer = ByteBuffer.allocate(align(4L * tree.length));
+        buffer.asIntBuffer().put(tree);
+        return buffer;
+    }
+
+    /**
+     * Returns the minimum excess in each word of <tt>bits</tt> (see the
+     * section in the class comment).
+     */
+    private static ByteBuffer getWordMinima(BitList bits)
+    {
+        int words = (int) ((bits.size + 63) / 64);
+        ByteBuffer buffer = ByteBuffer.allocate(align(words));
+        for (int w = 0; w < words; w++)
+        {
+            int excess = 0;
+            int min = 64;
+            long end = Math.min(64L * w + 64, bits.size);
+            for (long i = 64L * w; i < end; i++)
+            {
+                excess += bits.get(i) ? 1 : -1;
+                min = Math.min(min, excess);
+            }
+            buffer.put((byte) min);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of blocks of <tt>bits</tt> bits.
+     */
+    static int getBlocks(long bits)
+    {
+        long blocks = (bits + BLOCK_BITS - 1) / BLOCK_BITS;
+        if (blocks > Integer.MAX_VALUE / 4)
+            throw new IllegalArgumentException("section too large");
+        return (int) blocks;
+    }
+
+    /**
+     * Returns the number of leaves of the excess tree for <tt>blocks</tt>
+     * blocks, the smallest power of two which is at least as large.
+     */
+    static int getTreeLeaves(int blocks)
+    {
+        int leaves = 1;
+        while (leaves < blocks)
+            leaves *= 2;
+        return leaves;
+    }
+
+    private long write(ByteBuffer buffer, long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    /**
+     * Rounds <tt>size</tt> up to a multiple of 8.
+     */
+    static int align(long size)
+    {
+        long aligned = (size + 7) & ~7L;
+        if (aligned > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("section too large");
+        return (int) aligned;
+    }
+
+    private static class BitList
+    {
+        private long[] words = new long[16];
+        private long size = 0;
+
+        void add(boolean bit)
+        {
+            int w = (int) (size >>> 6);
+            if (w == words.length)
+                words = Arrays.copyOf(words, words.length * 2);
+            if (bit)
+                words[w] |= 1L << (size & 63);
+            size++;
+        }
+
+        boolean get(long i)
+        {
+            return (words[(int) (i >>> 6)] & (1L << (i & 63))) != 0;
+        }
+
+        /**
+         * Returns the number of ones from bit <tt>from</tt> to bit
+         * <tt>to</tt> (excluded), which are multiples of 64, except that
+         * <tt>to</tt> may be the size.
+         */
+        int countOnes(long from, long to)
+        {
+            int count = 0;
+            int end = (int) Math.min(words.length, (to + 63) >>> 6);
+            for (int w = (int) (from >>> 6); w < end; w++)
+                count += Long.bitCount(words[w]);
+            return count;
+        }
+
+        ByteBuffer toBuffer()
+        {
+            int n = (int) ((size + 63) / 64);
+            ByteBuffer buffer = ByteBuffer.allocate(align(8L * n));
+            buffer.asLongBuffer().put(words, 0, n);
+            return buffer;
+        }
+    }
+
+    private static class IntList
+    {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[size++] = value;
+        }
+
+        int remove()
+        {
+            return values[--size];
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package net.mustelinae.siteswap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Writes siteswaps to a channel, one on a line, in the same format as
+ * <tt>Siteswap.toString</tt>. The text is produced straight from the throw
+ * heights into a large buffer, which is written out whenever it fills up,
+ * so there are no intermediate <tt>String</tt>s and few system calls.
+ */
+public class SiteswapWriter
+    implements SequenceHandler, Flushable
+{
+    /**
+     * The default size of the buffer, in bytes.
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * The number of siteswaps written.
+     */
+    private long count = 0;
+
+    /**
+     * Creates a writer which writes to stdout.
+     */
+    public SiteswapWriter()
+    {
+        this(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    public SiteswapWriter(WritableByteChannel channel)
+    {
+        this(channel, BUFFER_SIZE);
+    }
+
+    public SiteswapWriter(WritableByteChannel channel, int buffer_size)
+    {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(buffer_size);
+    }
+
+    /**
+     * Writes a siteswap. Throws an <tt>UncheckedIOException</tt> if writing
+     * to the channel fails.
+     */
+    @Override
+    public boolean handle(int[] sequence, int length)
+    {
+        try
+        {
+            write(sequence, length);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the siteswap with throw heights <tt>sequence[0]</tt> to
+     * <tt>sequence[length-1]</tt>, followed by a newline.
+     */
+    public void write(int[] sequence, int length)
+            throws IOException
+    {
+        // at most 10 digits per throw, and a newline
+        if (buffer.remaining() < length * 10 + 1)
+        {
+            flushBuffer();
+            if (buffer.remaining() < length * 10 + 1)
+                throw new IOException("siteswap too long for the buffer");
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            int height = sequence[i];
+            if (0 <= height && height < 10)
+                buffer.put((byte) ('0' + height));
+            else
+                putNumber(height);
+        }
+        buffer.put((byte) '\n');
+        count++;
+    }
+
+    /**
+     * Puts the decimal representation of <tt>n</tt> in the buffer.
+     */
+    private void putNumber(int n)
+    {
+        if (n < 0)
+        {
+            buffer.put((byte) '-');
+            n = -n;
+        }
+        int start = buffer.position();
+        do
+        {
+            buffer.put((byte) ('0' + n % 10));
+            n /= 10;
+        }
+        while (n > 0);
+
+        // the digits came out reversed
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--)
+        {
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Writes out everything buffered so far.
+     */
+    public void flush()
+            throws IOException
+    {
+        flushBuffer();
+    }
+
+    /**
+     * Flushes and closes the channel.
+     */
+    public void close()
+            throws IOException
+    {
+        flushBuffer();
+        channel.close();
+    }
+
+    /**
+     * Returns the number of siteswaps written so far.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+}
@@ -1,15 +1,80 @@
 package net.mustelinae.siteswap;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * A class that represent a graph of juggling states. The nodes are of type
  * <tt>long</tt> and the edges are labeled with throw heights.
+ *
+ * For max heights of 64 or more the states don't fit in a <tt>long</tt>,
+ * and they are stored as several words each instead (see
+ * <tt>WideState</tt>). The methods which take or return <tt>long</tt>
+ * states can't be used with such graphs, but the index-based ones, which
+ * are all the search needs, work the same.
+ *
+ * A graph never changes once it is built, so it can be shared by several
+ * generators, and <tt>get</tt> returns the same instance for the same
+ * parameters. Graphs can also be saved to a file with <tt>write</tt> and
+ * loaded back with <tt>read</tt>, which is much faster than building them;
+ * <tt>get</tt> does this by itself if a cache directory is set. The file
+ * starts with a header:
+ * <pre>
+ *     int   MAGIC
+ *     int   VERSION
+ *     int   balls
+ *     int   max height
+ *     int   number of states (N)
+ *     int   number of edges (E)
+ *     int   number of words per state (W), see <tt>getWords</tt>
+ *     int   flags: 1 if the states are indexed by rank, see
+ *           <tt>buildRanked</tt>
+ * </pre>
+ * followed by these sections (big-endian, each starting at a multiple of
+ * 8 bytes):
+ * <pre>
+ *     long[NW]  the states, by index
+ *     int[N+1]  the offset of the first edge of each state, and E
+ *     int[E]    the index of the destination of each edge
+ *     byte[E]   the throw height of each edge
+ * </pre>
  */
 public class StateGraph
 {
     private static boolean DEBUG = Utils.DEBUG;
 
+    public static final int MAGIC = 0x53535747; // "SSWG"
+    public static final int VERSION = 1;
+
+    /**
+     * The size of the header, in bytes.
+     */
+    static final int HEADER_SIZE = 32;
+
+    /**
+     * The largest max height supported, as throw heights are stored in a
+     * <tt>byte</tt>.
+     */
+    public static final int MAX_HEIGHT = Byte.MAX_VALUE;
+
+    /**
+     * The graphs returned by <tt>get</tt>, by their parameters (see
+     * <tt>getKey</tt>).
+     */
+    private static final ConcurrentHashMap<Long, StateGraph> graphs
+            = new ConcurrentHashMap<Long, StateGraph>();
+
+    /**
+     * The directory where <tt>get</tt> looks for and saves graph files, or
+     * <tt>null</tt> for none.
+     */
+    private static volatile Path cache_directory;
+
     /**
      * Number of balls.
      */
@@ -27,17 +92,77 @@ public class StateGraph
     private long root;
 
     /**
-     * The set of nodes in the graph.
+     * The states of the graph, indexed densely from 0 to <tt>size-1</tt> in
+     * the order in which they were discovered. The root has index 0. With
+     * more than one word per state, the words of the state with index
+     * <tt>i</tt> start at <tt>states[i*words]</tt>.
+     */
+    private long[] states;
+
+    /**
+     * The number of words per state: 1 for max heights up to 63, more for
+     * wide states.
+     */
+    private final int words;
+
+    /**
+     * The number of states in the graph.
+     */
+    private int size;
+
+    /**
+     * Maps a state to its index in <tt>states</tt>. Only built on demand for
+     * graphs which were read from a file, see <tt>getIndices</tt>.
+     */
+    private LongIntMap indices;
+
+    /**
+     * Maps a wide state to its index while the graph is being built.
      */
-    private Set<Long> nodes = new HashSet<Long>();
+    private WideStateIntMap wide_indices;
 
     /**
-     * The structure that holds the graph edges. For every node, we maintain an
-     * ordered map, which contains entries for the node's children. Each of
-     * those child entries is of the form (throw_height, destination).
+     * Whether the index of each state is its rank (see
+     * <tt>buildRanked</tt>), so that no map is needed to find it, and
+     * <tt>binomials[n][k]</tt> is <tt>n</tt> choose <tt>k</tt> for computing
+     * it.
      */
-    private Map<Long, TreeMap<Integer, Long>> edges
-            = new HashMap<Long, TreeMap<Integer, Long>>();
+    private boolean ranked = false;
+    private long[][] binomials;
+
+    /**
+     * The states are built in this many chunks per thread by
+     * <tt>buildRanked</tt>, so that the threads finishing early find work
+     * left.
+     */
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    /**
+     * The edges of the graph in compressed sparse row form. The edges going
+     * out of the state with index <tt>i</tt> are those with indices
+     * <tt>edge_offsets[i]</tt> (inclusive) to <tt>edge_offsets[i+1]</tt>
+     * (exclusive), ordered by throw height. For an edge <tt>e</tt>,
+     * <tt>edge_targets[e]</tt> is the index of the destination state and
+     * <tt>edge_labels[e]</tt> is the throw height.
+     */
+    private int[] edge_offsets;
+    private int[] edge_targets;
+    private byte[] edge_labels;
+
+    /**
+     * The reversed edges, in the same form: the sources of the edges going
+     * into the state with index <tt>i</tt> are
+     * <tt>in_sources[in_offsets[i]]</tt> to
+     * <tt>in_sources[in_offsets[i+1]-1]</tt>. Only built when needed, see
+     * <tt>getDistancesTo</tt>.
+     */
+    private int[] in_offsets;
+    private int[] in_sources;
+
+    /**
+     * The distance <tt>getDistancesTo</tt> uses for nodes it did not reach.
+     */
+    public static final byte UNREACHED = Byte.MAX_VALUE;
 
     /**
      * Constructs a graph with the given number of balls and the given maximum
@@ -47,35 +172,702 @@ public class StateGraph
      */
     public StateGraph(int balls, int max_height)
     {
+        if (max_height < 0 || max_height > MAX_HEIGHT)
+            throw new IllegalArgumentException("max height out of range: "
+                    + max_height);
         this.balls = balls;
         this.max_height = max_height;
-        root = 0;
-        for (int i = 1; i<=balls; i++)
-            root = set(root, i);
-
-        Set<Long> undone = new HashSet<Long>();
-        undone.add(root);
+        words = WideState.getWords(max_height);
+        edge_offsets = new int[16];
+        edge_targets = new int[64];
+        edge_labels = new byte[64];
 
-        while (!undone.isEmpty())
+        int edges = 0;
+        if (words > 1)
         {
-            long node = undone.iterator().next();
-            nodes.add(node);
-            TreeMap<Integer, Long> children = generateChildren(node);
-            for (long child : children.values())
-                if (!nodes.contains(child))
-                    undone.add(child);
+            edges = buildWide();
+        }
+        else
+        {
+            root = 0;
+            for (int i = 1; i<=balls; i++)
+                root = set(root, i);
 
-            edges.put(node, children);
+            states = new long[16];
+            indices = new LongIntMap();
+            addState(root);
 
-            undone.remove(node);
+            // breadth-first: the states are expanded in index order, so the
+            // rows of the edge arrays are filled in order, too
+            for (int i = 0; i < size; i++)
+            {
+                if (i == edge_offsets.length)
+                    edge_offsets = Arrays.copyOf(edge_offsets, i * 2);
+                edge_offsets[i] = edges;
+                edges = generateChildren(states[i], edges);
+            }
         }
 
+        states = Arrays.copyOf(states, size * words);
+        edge_offsets = Arrays.copyOf(edge_offsets, size + 1);
+        edge_offsets[size] = edges;
+        edge_targets = Arrays.copyOf(edge_targets, edges);
+        edge_labels = Arrays.copyOf(edge_labels, edges);
+
         if (DEBUG)
         {
             print();
             System.err.println("Constructed graph, balls=" + balls
-                + ", max_height=" + max_height);
+                + ", max_height=" + max_height + ", states=" + size
+                + ", edges=" + edges);
+        }
+    }
+
+    /**
+     * Creates a graph from its arrays, as read from a file.
+     */
+    private StateGraph(int balls, int max_height, int words, long[] states,
+                       int[] edge_offsets, int[] edge_targets,
+                       byte[] edge_labels)
+    {
+        this.balls = balls;
+        this.max_height = max_height;
+        this.words = words;
+        this.states = states;
+        this.edge_offsets = edge_offsets;
+        this.edge_targets = edge_targets;
+        this.edge_labels = edge_labels;
+        size = states.length / words;
+        root = words == 1 ? states[0] : 0;
+    }
+
+    /**
+     * Returns the graph with the given number of balls and maximum throw
+     * height, building it (or reading it from the cache directory, see
+     * <tt>setCacheDirectory</tt>) on the first call with these parameters
+     * and sharing it with all later ones. Safe to call from several
+     * threads. The graphs are kept for the lifetime of the process.
+     */
+    public static StateGraph get(final int balls, final int max_height)
+    {
+        return graphs.computeIfAbsent(getKey(balls, max_height),
+                new Function<Long, StateGraph>()
+                {
+                    @Override
+                    public StateGraph apply(Long key)
+                    {
+                        return load(balls, max_height);
+                    }
+                });
+    }
+
+    private static Long getKey(int balls, int max_height)
+    {
+        return ((long) balls << 32) | (max_height & 0xffffffffL);
+    }
+
+    /**
+     * Sets a directory in which <tt>get</tt> looks for a file with the
+     * graph before building it, and saves it after building it, or
+     * <tt>null</tt> to always build graphs.
+     */
+    public static void setCacheDirectory(Path directory)
+    {
+        cache_directory = directory;
+    }
+
+    /**
+     * Reads the graph from the cache directory, if it is there, or builds
+     * it and saves it there.
+     */
+    private static StateGraph load(int balls, int max_height)
+    {
+        Path directory = cache_directory;
+        if (directory == null)
+            return new StateGraph(balls, max_height);
+
+        Path file = directory.resolve("stategraph-" + balls + "-"
+                + max_height + ".bin");
+        if (Files.isRegularFile(file))
+        {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ))
+            {
+                StateGraph graph = read(channel);
+                if (graph.balls == balls && graph.max_height == max_height)
+                    return graph;
+            }
+            catch (IOException e)
+            {
+                // rebuild it, and replace the file
+                System.err.println("IOException: "+e);
+            }
+        }
+
+        StateGraph graph = new StateGraph(balls, max_height);
+        try
+        {
+            // write to a temporary file first, so that other processes
+            // never see a partial file
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, "stategraph", ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp,
+                    StandardOpenOption.WRITE))
+            {
+                graph.write(channel);
+            }
+            try
+            {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException: "+e);
+        }
+        return graph;
+    }
+
+    /**
+     * Writes the graph to <tt>channel</tt>, starting at position 0, in the
+     * format described above.
+     */
+    public void write(FileChannel channel)
+            throws IOException
+    {
+        int edges = edge_offsets[size];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(balls).putInt(max_height)
+                .putInt(size).putInt(edges).putInt(words)
+                .putInt(ranked ? 1 : 0);
+        header.flip();
+        long position = write(channel, header, 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(align(8L * size * words));
+        buffer.asLongBuffer().put(states, 0, size * words);
+        position = write(channel, buffer, position);
+
+        buffer = ByteBuffer.allocate(align(4L * (size + 1)));
+        buffer.asIntBuffer().put(edge_offsets, 0, size + 1);
+        position = write(channel, buffer, position);
+
+        buffer = ByteBuffer.allocate(align(4L * edges));
+        buffer.asIntBuffer().put(edge_targets, 0, edges);
+        position = write(channel, buffer, position);
+
+        buffer = ByteBuffer.allocate(align(edges));
+        buffer.put(edge_labels, 0, edges).clear();
+        write(channel, buffer, position);
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer,
+                              long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    /**
+     * Rounds <tt>size</tt> up to a multiple of 8.
+     */
+    private static int align(long size)
+    {
+        long aligned = (size + 7) & ~7L;
+        if (aligned > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("section too large");
+        return (int) aligned;
+    }
+
+    /**
+     * Reads a graph written by <tt>write</tt> from <tt>channel</tt>. The
+     * file is memory-mapped and its sections copied to the arrays of the
+     * graph with bulk transfers, so this takes about as long as reading the
+     * file. The map from states to indices isn't stored in the file; it is
+     * built on the first call which needs it.
+     * @throws IOException if the file is not a valid graph file
+     */
+    public static StateGraph read(FileChannel channel)
+            throws IOException
+    {
+        long file_size = channel.size();
+        if (file_size < HEADER_SIZE)
+            throw new IOException("not a state graph file");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining())
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("not a state graph file");
+        header.flip();
+        if (header.getInt() != MAGIC)
+            throw new IOException("not a state graph file");
+        int version = header.getInt();
+        if (version != VERSION)
+            throw new IOException("unsupported version: " + version);
+        int balls = header.getInt();
+        int max_height = header.getInt();
+        int size = header.getInt();
+        int edges = header.getInt();
+        int words = header.getInt();
+        boolean ranked = (header.getInt() & 1) != 0;
+        if (max_height < 0 || max_height > MAX_HEIGHT
+                || words != WideState.getWords(max_height))
+            throw new IOException("invalid state graph file");
+
+        long states_size = align(8L * size * words);
+        long offsets_size = align(4L * (size + 1));
+        long targets_size = align(4L * edges);
+        long labels_size = align(edges);
+        long length = states_size + offsets_size + targets_size + labels_size;
+        if (size < 1 || edges < 0 || HEADER_SIZE + length > file_size
+                || length > Integer.MAX_VALUE)
+            throw new IOException("truncated state graph file");
+
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                           HEADER_SIZE, length);
+        long[] states = new long[size * words];
+        int[] edge_offsets = new int[size + 1];
+        int[] edge_targets = new int[edges];
+        byte[] edge_labels = new byte[edges];
+
+        map.position(0);
+        map.slice().asLongBuffer().get(states);
+        map.position((int) states_size);
+        map.slice().asIntBuffer().get(edge_offsets);
+        map.position((int) (states_size + offsets_size));
+        map.slice().asIntBuffer().get(edge_targets);
+        map.position((int) (states_size + offsets_size + targets_size));
+        map.get(edge_labels);
+
+        // check what the other methods rely on, so that a damaged file
+        // can't make them fail
+        if (edge_offsets[0] != 0 || edge_offsets[size] != edges)
+            throw new IOException("invalid state graph file");
+        for (int i = 0; i < size; i++)
+            if (edge_offsets[i] > edge_offsets[i + 1])
+                throw new IOException("invalid state graph file");
+        for (int edge = 0; edge < edges; edge++)
+            if (edge_targets[edge] < 0 || edge_targets[edge] >= size)
+                throw new IOException("invalid state graph file");
+
+        StateGraph graph = new StateGraph(balls, max_height, words, states,
+                edge_offsets, edge_targets, edge_labels);
+        if (ranked)
+            graph.setRanked();
+        return graph;
+    }
+
+    /**
+     * Builds the graph with the given number of balls and maximum throw
+     * height on <tt>parallelism</tt> threads, without a map from states to
+     * indices and without growing any array.
+     *
+     * Rather than discovering the states breadth-first, it enumerates all
+     * states with <tt>balls</tt> of the <tt>max_height</tt> positions set
+     * (which are exactly the nodes of the graph) in increasing order, and
+     * indexes each state by its rank in that order, computed with the
+     * combinatorial number system: a state with balls at positions
+     * <tt>p1 &lt; p2 &lt; ... &lt; pk</tt> has rank
+     * <tt>C(p1-1, 1) + C(p2-1, 2) + ... + C(pk-1, k)</tt>. The number of
+     * states and of edges is known in advance, so every array is allocated
+     * once with its final size, and the threads fill different ranges of
+     * them.
+     *
+     * The root (the ground state) still has index 0, and the edges of each
+     * state are in the same order, but the other states have different
+     * indices than with the constructor, so canonical generation finds the
+     * same siteswaps in a different order. Only supports max heights up to
+     * 63.
+     */
+    public static StateGraph buildRanked(final int balls, final int max_height,
+                                         int parallelism)
+    {
+        if (max_height < 1 || max_height > 63 || balls < 0
+                || balls > max_height)
+            throw new IllegalArgumentException("invalid parameters: "
+                    + balls + " balls, max height " + max_height);
+        final long[][] binomials = getBinomials(max_height);
+        long size = binomials[max_height][balls];
+        // the states with position 1 empty have a single edge, the others
+        // one for each empty position after shifting
+        long edges = binomials[max_height - 1][balls]
+                + (balls == 0 ? 0 : binomials[max_height - 1][balls - 1]
+                                    * (max_height - balls + 1));
+        if (size > Integer.MAX_VALUE - 8 || edges > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("graph too large: " + size
+                    + " states, " + edges + " edges");
+
+        final long[] states = new long[(int) size];
+        final int[] edge_offsets = new int[(int) size + 1];
+        final int[] edge_targets = new int[(int) edges];
+        final byte[] edge_labels = new byte[(int) edges];
+
+        int chunks = (int) Math.min(size, (long) parallelism * CHUNKS_PER_THREAD);
+        final int[] bounds = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++)
+            bounds[c] = (int) (size * c / chunks);
+        // the number of edges of each chunk, and then of all chunks before
+        // each one
+        final int[] chunk_edges = new int[chunks + 1];
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            RecursiveAction[] tasks = new RecursiveAction[chunks];
+            for (int c = 0; c < chunks; c++)
+            {
+                final int chunk = c;
+                tasks[c] = new RecursiveAction()
+                {
+                    @Override
+                    protected void compute()
+                    {
+                        chunk_edges[chunk + 1] = fillStates(balls, max_height,
+                                binomials, bounds[chunk], bounds[chunk + 1],
+                                states, edge_offsets);
+                    }
+                };
+                pool.execute(tasks[c]);
+            }
+            for (RecursiveAction task : tasks)
+                task.join();
+
+            for (int c = 0; c < chunks; c++)
+                chunk_edges[c + 1] += chunk_edges[c];
+
+            for (int c = 0; c < chunks; c++)
+            {
+                final int chunk = c;
+                tasks[c] = new RecursiveAction()
+                {
+                    @Override
+                    protected void compute()
+                    {
+                        fillEdges(balls, max_height, binomials,
+                                  bounds[chunk], bounds[chunk + 1],
+                                  chunk_edges[chunk], states, edge_offsets,
+                                  edge_targets, edge_labels);
+                    }
+                };
+                pool.execute(tasks[c]);
+            }
+            for (RecursiveAction task : tasks)
+                task.join();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        edge_offsets[(int) size] = (int) edges;
+
+        StateGraph graph = new StateGraph(balls, max_height, 1, states,
+                edge_offsets, edge_targets, edge_labels);
+        graph.setRanked();
+        return graph;
+    }
+
+    /**
+     * Returns the binomial coefficients <tt>C(n, k)</tt> for
+     * <tt>0 &lt;= k &lt;= n &lt;= max_height</tt>.
+     */
+    private static long[][] getBinomials(int max_height)
+    {
+        long[][] binomials = new long[max_height + 1][max_height + 2];
+        for (int n = 0; n <= max_height; n++)
+        {
+            binomials[n][0] = 1;
+            for (int k = 1; k <= n; k++)
+                binomials[n][k] = binomials[n - 1][k - 1] + binomials[n - 1][k];
+        }
+        return binomials;
+    }
+
+    /**
+     * Makes the index of a state its rank, see <tt>buildRanked</tt>.
+     */
+    private void setRanked()
+    {
+        binomials = getBinomials(max_height);
+        ranked = true;
+    }
+
+    /**
+     * Returns the rank of <tt>state</tt> among the states with the same
+     * number of balls, see <tt>buildRanked</tt>.
+     */
+    private static long getRank(long state, long[][] binomials)
+    {
+        long rank = 0;
+        for (int i = 1; state != 0; i++)
+        {
+            int position = Long.numberOfTrailingZeros(state);
+            state &= state - 1;
+            rank += binomials[position - 1][i];
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the state with rank <tt>rank</tt> among the states with
+     * <tt>balls</tt> balls.
+     */
+    private static long getState(long rank, int balls, int max_height,
+                                 long[][] binomials)
+    {
+        long state = 0;
+        int n = max_height - 1;
+        for (int i = balls; i > 0; i--)
+        {
+            // the highest ball is at the largest n with C(n, i) <= rank
+            while (binomials[n][i] > rank)
+                n--;
+            state |= 1L << (n + 1);
+            rank -= binomials[n][i];
+            n--;
+        }
+        return state;
+    }
+
+    /**
+     * Stores the states with ranks <tt>from</tt> to <tt>to-1</tt>, and the
+     * offsets of their edges relative to the first one of <tt>from</tt>.
+     * @return the number of edges of the states
+     */
+    private static int fillStates(int balls, int max_height,
+                                  long[][] binomials, int from, int to,
+                                  long[] states, int[] edge_offsets)
+    {
+        int degree = max_height - balls + 1;
+        int edges = 0;
+        long state = getState(from, balls, max_height, binomials);
+        for (int i = from; i < to; i++)
+        {
+            states[i] = state;
+            edge_offsets[i] = edges;
+            edges += isSet(state, 1) ? degree : 1;
+            if (i + 1 < to)
+                state = ImplicitCycleEnumerator.getNextState(state, max_height);
+        }
+        return edges;
+    }
+
+    /**
+     * Adds <tt>base</tt> to the edge offsets of the states with ranks
+     * <tt>from</tt> to <tt>to-1</tt>, and stores their edges, in the order
+     * of <tt>generateChildren</tt>.
+     */
+    private static void fillEdges(int balls, int max_height,
+                                  long[][] binomials, int from, int to,
+                                  int base, long[] states, int[] edge_offsets,
+                                  int[] edge_targets, byte[] edge_labels)
+    {
+        long positions = getPositions(max_height);
+        // below[k] and above[k] are the parts of the rank of a child of a
+        // state from the k lowest balls of the shifted state, and from the
+        // others (which move up one place in the order of the child's balls)
+        long[] below = new long[balls + 1];
+        long[] above = new long[balls + 1];
+        for (int i = from; i < to; i++)
+        {
+            int edge = edge_offsets[i] += base;
+            long state = states[i];
+            long shifted = shiftLeft(state);
+            if (!isSet(state, 1))
+            {
+                edge_targets[edge] = (int) getRank(shifted, binomials);
+                edge_labels[edge] = 0;
+                continue;
+            }
+
+            int m = balls - 1; // the balls in 'shifted'
+            long bits = shifted;
+            for (int k = 1; k <= m; k++)
+            {
+                int position = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                below[k] = below[k - 1] + binomials[position - 1][k];
+            }
+            above[m] = 0;
+            bits = shifted;
+            for (int k = 0; k < m; k++)
+            {
+                // the (k+1)-th lowest ball becomes the (k+2)-th
+                int position = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                above[k] = binomials[position - 1][k + 2];
+            }
+            for (int k = m - 1; k >= 0; k--)
+                above[k] += above[k + 1];
+
+            long free = ~shifted & positions;
+            int k = 0; // the balls of 'shifted' below the throw
+            long rest = shifted;
+            while (free != 0)
+            {
+                int height = Long.numberOfTrailingZeros(free);
+                free &= free - 1;
+                while (rest != 0 && Long.numberOfTrailingZeros(rest) < height)
+                {
+                    rest &= rest - 1;
+                    k++;
+                }
+                edge_targets[edge] = (int) (below[k]
+                        + binomials[height - 1][k + 1] + above[k]);
+                edge_labels[edge] = (byte) height;
+                edge++;
+            }
+        }
+    }
+
+    /**
+     * Returns the map from states to indices, building it if necessary.
+     */
+    private synchronized LongIntMap getIndices()
+    {
+        checkNarrow();
+        if (indices == null)
+        {
+            LongIntMap map = new LongIntMap(size);
+            for (int i = 0; i < size; i++)
+                map.put(states[i], i);
+            indices = map;
+        }
+        return indices;
+    }
+
+    /**
+     * Throws an <tt>UnsupportedOperationException</tt> if the states of the
+     * graph don't fit in a <tt>long</tt>.
+     */
+    private void checkNarrow()
+    {
+        if (words > 1)
+            throw new UnsupportedOperationException("the states of a graph "
+                    + "with max height " + max_height + " don't fit in a long");
+    }
+
+    /**
+     * Builds a graph with wide states, like the constructor does with
+     * <tt>long</tt> ones.
+     * @return the number of edges
+     */
+    private int buildWide()
+    {
+        states = new long[16 * words];
+        wide_indices = new WideStateIntMap(words);
+        // the shifted state being expanded, and a child of it
+        long[] scratch = new long[2 * words];
+        for (int i = 1; i <= balls; i++)
+            WideState.set(scratch, 0, i);
+        addWideState(scratch, 0);
+
+        int edges = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (i == edge_offsets.length)
+                edge_offsets = Arrays.copyOf(edge_offsets, i * 2);
+            edge_offsets[i] = edges;
+            edges = generateWideChildren(i, edges, scratch);
+        }
+        // nothing looks wide states up once the graph is built
+        wide_indices = null;
+        return edges;
+    }
+
+    private int addWideState(long[] state, int offset)
+    {
+        if ((size + 1) * words > states.length)
+            states = Arrays.copyOf(states, states.length * 2);
+        WideState.copy(state, offset, states, size * words, words);
+        wide_indices.put(state, offset, size);
+        return size++;
+    }
+
+    /**
+     * Like <tt>addEdge</tt>, for the wide state at <tt>offset</tt> of
+     * <tt>target</tt>.
+     */
+    private int addWideEdge(int edge, int height, long[] target, int offset)
+    {
+        int index = wide_indices.get(target, offset);
+        if (index == -1)
+            index = addWideState(target, offset);
+        return putEdge(edge, height, index);
+    }
+
+    /**
+     * Like <tt>generateChildren</tt>, for the wide state with index
+     * <tt>index</tt>.
+     */
+    private int generateWideChildren(int index, int edge, long[] scratch)
+    {
+        int offset = index * words;
+        boolean lands = WideState.isSet(states, offset, 1);
+        WideState.shiftLeft(states, offset, scratch, 0, words);
+        if (!lands)
+            return addWideEdge(edge, 0, scratch, 0);
+
+        for (int w = 0; w < words; w++)
+        {
+            long free = ~scratch[w] & WideState.getPositions(w, max_height);
+            while (free != 0)
+            {
+                int i = 64 * w + Long.numberOfTrailingZeros(free);
+                free &= free - 1;
+                WideState.copy(scratch, 0, scratch, words, words);
+                WideState.set(scratch, words, i);
+                edge = addWideEdge(edge, i, scratch, words);
+            }
         }
+        return edge;
+    }
+
+    /**
+     * Adds <tt>state</tt> to the graph, assigning it the next free index.
+     * @return the index of <tt>state</tt>
+     */
+    private int addState(long state)
+    {
+        if (size == states.length)
+            states = Arrays.copyOf(states, size * 2);
+        states[size] = state;
+        indices.put(state, size);
+        return size++;
+    }
+
+    /**
+     * Adds an edge with label <tt>height</tt> to <tt>target</tt> at position
+     * <tt>edge</tt> of the edge arrays, adding <tt>target</tt> to the graph
+     * if necessary.
+     * @return the position for the next edge
+     */
+    private int addEdge(int edge, int height, long target)
+    {
+        int index = indices.get(target);
+        if (index == -1)
+            index = addState(target);
+        return putEdge(edge, height, index);
+    }
+
+    /**
+     * Stores an edge with label <tt>height</tt> to the node with index
+     * <tt>index</tt> at position <tt>edge</tt> of the edge arrays.
+     * @return the position for the next edge
+     */
+    private int putEdge(int edge, int height, int index)
+    {
+        if (edge == edge_targets.length)
+        {
+            edge_targets = Arrays.copyOf(edge_targets, edge * 2);
+            edge_labels = Arrays.copyOf(edge_labels, edge * 2);
+        }
+        edge_targets[edge] = index;
+        edge_labels[edge] = (byte) height;
+        return edge + 1;
     }
 
     /**
@@ -87,13 +879,18 @@ public class StateGraph
      * Example: xx000 -> x0000
      * @param state the state to shift.
      */
-    private long shiftLeft(long state)
+    static long shiftLeft(long state)
     {
-        long ret = 0;
-        for (int i = 2; i<=max_height; i++)
-            if (isSet(state, i))
-                ret = set(ret, i-1);
-        return ret;
+        // position i is bit i, and bit 0 is never set
+        return (state >>> 1) & ~1L;
+    }
+
+    /**
+     * Returns the bits of the positions 1 to <tt>max_height</tt>.
+     */
+    static long getPositions(int max_height)
+    {
+        return ((1L << max_height) - 1) << 1;
     }
 
     /**
@@ -113,57 +910,68 @@ public class StateGraph
      */
     private void print()
     {
-        for(long node : nodes)
+        for(int i = 0; i < size; i++)
         {
-            print(node);
-            for(Map.Entry<Integer, Long> entry : edges.get(node).entrySet())
+            printState(i);
+            for(int edge = edge_offsets[i]; edge < edge_offsets[i+1]; edge++)
             {
-                System.err.print(" "+entry.getKey()+": ");
-                print(entry.getValue());
+                System.err.print(" "+edge_labels[edge]+": ");
+                printState(edge_targets[edge]);
             }
             System.err.println("");
         }
     }
 
     /**
-     * For a given node, generates and returns the <tt>TreeMap</tt> of its
-     * children. Helps it generating the graph. If the graph is already
-     * generated, <tt>getChildren</tt> should be used instead.
-     * @param node the node for which to generate the map of its children
-     * @return the map of children of <tt>node</tt>
+     * For a given node, generates its children and appends the edges to them
+     * to the edge arrays, in order of increasing throw height. Helps in
+     * generating the graph. If the graph is already generated,
+     * <tt>getChildren</tt> should be used instead.
+     * @param node the node for which to generate the children
+     * @param edge the position at which to add the first edge
+     * @return the position for the next edge after the children of
+     * <tt>node</tt>
      */
-    private TreeMap<Integer, Long> generateChildren(long node)
+    private int generateChildren(long node, int edge)
     {
-        TreeMap<Integer,Long> ret = new TreeMap<Integer,Long>();
         long shifted = shiftLeft(node);
         if (isSet(node, 1))
         {
-            for (int i = 1; i<= max_height; i++)
+            // the empty positions, lowest first
+            long free = ~shifted & getPositions(max_height);
+            while (free != 0)
             {
-                if(!isSet(shifted, i))
-                {
-                    ret.put(i, set(shifted, i));
-                }
+                int i = Long.numberOfTrailingZeros(free);
+                free &= free - 1;
+                edge = addEdge(edge, i, set(shifted, i));
             }
-
         }
         else
         {
-            ret.put(0, shifted);
+            edge = addEdge(edge, 0, shifted);
         }
 
-        return ret;
+        return edge;
     }
 
     /**
-     * Gets the <tt>TreeMap</tt> of children of <tt>node</tt> from the already
-     * generated graph.
+     * Gets the children of <tt>node</tt> from the already generated graph,
+     * as a map from throw height to child. The map is built on every call,
+     * the index-based methods (<tt>getFirstEdge</tt> and friends) should be
+     * preferred where performance matters.
      * @param node
      * @return
      */
     public TreeMap<Integer, Long> getChildren(long node)
     {
-        return edges.get(node);
+        int index = getIndex(node);
+        if (index == -1)
+            return null;
+
+        TreeMap<Integer, Long> ret = new TreeMap<Integer, Long>();
+        for (int edge = edge_offsets[index]; edge < edge_offsets[index+1]; edge++)
+            ret.put((int) edge_labels[edge], states[edge_targets[edge]]);
+        return ret;
     }
 
     /**
@@ -173,12 +981,9 @@ public class StateGraph
      * @param position
      * @return
      */
-    private long set(long state, int position)
+    static long set(long state, int position)
     {
-        if (isSet(state, position))
-            return state;
-        else
-            return state + power(2, position);
+        return state | (1L << position);
     }
 
     /**
@@ -188,12 +993,9 @@ public class StateGraph
      * @param position
      * @return
      */
-    private long unset(long state, int position)
+    static long unset(long state, int position)
     {
-        if (isSet(state, position))
-            return state - power(2, position);
-        else
-            return state;
+        return state & ~(1L << position);
     }
 
     /**
@@ -212,6 +1014,19 @@ public class StateGraph
         System.err.print("\n");
     }
 
+    /**
+     * Prints the state with index <tt>index</tt> to stderr, for graphs
+     * with wide states, too.
+     */
+    public void printState(int index)
+    {
+        if (words == 1)
+            print(states[index]);
+        else
+            System.err.println(WideState.toString(states, index * words,
+                                                  max_height));
+    }
+
     /**
      * Checks whether <tt>position</tt> is set (i.e. a ball is scheduled to
      * land on it) in the juggling state <tt>state</tt>
@@ -219,31 +1034,318 @@ public class StateGraph
      * @param position
      * @return
      */
-    private boolean isSet(long state, int position)
+    static boolean isSet(long state, int position)
     {
-        return !( (state & (power(2, position))) == 0);
+        return ((state >>> position) & 1) != 0;
     }
 
+    /**
+     * Returns the set of nodes in the graph. The set is built on every call,
+     * <tt>size</tt> and <tt>getState</tt> should be preferred where
+     * performance matters.
+     */
     public Set<Long> getNodes()
     {
-        return nodes;
+        checkNarrow();
+        Set<Long> ret = new LinkedHashSet<Long>();
+        for (int i = 0; i < size; i++)
+            ret.add(states[i]);
+        return ret;
     }
 
+    /**
+     * Returns the number of nodes in the graph.
+     */
+    public int size()
+    {
+        return size;
+    }
 
     /**
-     * Returns a^power
+     * Returns the node with index <tt>index</tt>. Not supported for graphs
+     * with wide states, see <tt>getState(int, long[], int)</tt>.
      */
-    private long power(int a, int power)
+    public long getState(int index)
     {
-        long ret = 1;
-        for (int i = 0; i < power; i++)
-            ret *= a;
-        return ret;
+        checkNarrow();
+        return states[index];
+    }
+
+    /**
+     * Copies the words of the node with index <tt>index</tt> (see
+     * <tt>WideState</tt>) to <tt>out</tt>, starting at <tt>offset</tt>.
+     * Works for all graphs.
+     */
+    public void getState(int index, long[] out, int offset)
+    {
+        WideState.copy(states, index * words, out, offset, words);
+    }
+
+    /**
+     * Returns the number of <tt>long</tt> words per state: 1 for max
+     * heights up to 63.
+     */
+    public int getWords()
+    {
+        return words;
+    }
+
+    /**
+     * Returns the index of the node <tt>state</tt>, or -1 if <tt>state</tt>
+     * is not in the graph.
+     */
+    public int getIndex(long state)
+    {
+        if (ranked)
+        {
+            checkNarrow();
+            if ((state & ~getPositions(max_height)) != 0
+                    || Long.bitCount(state) != balls)
+                return -1;
+            return (int) getRank(state, binomials);
+        }
+        return getIndices().get(state);
+    }
+
+    /**
+     * Returns the total number of edges in the graph.
+     */
+    public int getEdgeCount()
+    {
+        return edge_offsets[size];
+    }
+
+    /**
+     * Returns the first of the edges going out of the node with index
+     * <tt>index</tt>. The edges of a node are ordered by throw height.
+     */
+    public int getFirstEdge(int index)
+    {
+        return edge_offsets[index];
+    }
+
+    /**
+     * Returns the edge after the last one going out of the node with index
+     * <tt>index</tt>.
+     */
+    public int getEdgeEnd(int index)
+    {
+        return edge_offsets[index+1];
+    }
+
+    /**
+     * Returns the index of the destination node of <tt>edge</tt>.
+     */
+    public int getEdgeTarget(int edge)
+    {
+        return edge_targets[edge];
+    }
+
+    /**
+     * Returns the throw height <tt>edge</tt> is labeled with.
+     */
+    public int getEdgeLabel(int edge)
+    {
+        return edge_labels[edge];
+    }
+
+    public int getBalls()
+    {
+        return balls;
+    }
+
+    public int getMaxHeight()
+    {
+        return max_height;
+    }
+
+
+    /**
+     * Returns the edge from the node with index <tt>from</tt> to the node
+     * <tt>to</tt>, or -1 if there is no such edge.
+     *
+     * The children of a node are exactly the states obtained by setting one
+     * of the empty positions of the shifted node, ordered by the position.
+     * So the edge can be located directly: its throw height is the only bit
+     * by which <tt>to</tt> differs from the shifted node, and its offset is
+     * the number of empty positions below that height.
+     */
+    private int getEdge(int from, long to)
+    {
+        long node = states[from];
+        long shifted = shiftLeft(node);
+        int offset;
+        if (isSet(node, 1))
+        {
+            long diff = to ^ shifted;
+            if ((to & shifted) != shifted || Long.bitCount(diff) != 1)
+                return -1;
+            int height = Long.numberOfTrailingZeros(diff);
+            // position 0 is never used, positions 1..height-1 are either
+            // empty (one edge each) or set in 'shifted'
+            offset = height - 1 - Long.bitCount(shifted & (diff - 2));
+        }
+        else
+        {
+            if (to != shifted)
+                return -1;
+            offset = 0;
+        }
+
+        int edge = edge_offsets[from] + offset;
+        if (edge >= edge_offsets[from+1] || states[edge_targets[edge]] != to)
+            return -1;
+        return edge;
+    }
+
+    /**
+     * Builds the reversed edges, if they haven't been built already.
+     */
+    private synchronized void buildReverseEdges()
+    {
+        if (in_offsets != null)
+            return;
+
+        int edges = edge_offsets[size];
+        int[] offsets = new int[size + 1];
+        for (int edge = 0; edge < edges; edge++)
+            offsets[edge_targets[edge] + 1]++;
+        for (int i = 0; i < size; i++)
+            offsets[i + 1] += offsets[i];
+
+        int[] sources = new int[edges];
+        int[] fill = Arrays.copyOf(offsets, size);
+        for (int i = 0; i < size; i++)
+            for (int edge = edge_offsets[i]; edge < edge_offsets[i+1]; edge++)
+                sources[fill[edge_targets[edge]]++] = i;
+
+        in_sources = sources;
+        in_offsets = offsets;
+    }
+
+    /**
+     * Computes the length of the shortest path from every node to the node
+     * with index <tt>target</tt>, going only through nodes with index at
+     * least <tt>min_index</tt>, as long as it is at most
+     * <tt>max_distance</tt> (which must be smaller than <tt>UNREACHED</tt>).
+     *
+     * The distances are stored in <tt>distances</tt>, which must be filled
+     * with <tt>UNREACHED</tt>. Only the entries of the nodes which are
+     * reached are changed: they are also stored in <tt>reached</tt>, in
+     * order of increasing distance, so that the caller can reset them.
+     *
+     * @return the number of nodes reached
+     */
+    public int getDistancesTo(int target, int min_index, int max_distance,
+                              byte[] distances, int[] reached)
+    {
+        if (max_distance >= UNREACHED)
+            throw new IllegalArgumentException("max_distance too big: "
+                    + max_distance);
+        buildReverseEdges();
+
+        distances[target] = 0;
+        reached[0] = target;
+        int count = 1;
+        for (int head = 0; head < count; head++)
+        {
+            int node = reached[head];
+            int distance = distances[node] + 1;
+            if (distance > max_distance)
+                break;
+            for (int i = in_offsets[node]; i < in_offsets[node+1]; i++)
+            {
+                int source = in_sources[i];
+                if (source >= min_index && distances[source] == UNREACHED)
+                {
+                    distances[source] = (byte) distance;
+                    reached[count++] = source;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Like <tt>getDistancesTo(int, int, int, byte[], int[])</tt>, but
+     * allocates the arrays.
+     * @return the distances, with <tt>UNREACHED</tt> for the nodes which are
+     * not reached
+     */
+    public byte[] getDistancesTo(int target, int min_index, int max_distance)
+    {
+        byte[] distances = new byte[size];
+        Arrays.fill(distances, UNREACHED);
+        getDistancesTo(target, min_index, max_distance,
+                       distances, new int[size]);
+        return distances;
+    }
+
+    /**
+     * Returns the edge from the node with index <tt>from</tt> to the node
+     * with index <tt>to</tt>, or -1 if there is no such edge.
+     */
+    public int getEdge(int from, int to)
+    {
+        if (words > 1)
+            return getWideEdge(from, to);
+        return getEdge(from, states[to]);
+    }
+
+    /**
+     * Like <tt>getEdge(int, long)</tt>, for graphs with wide states.
+     */
+    private int getWideEdge(int from, int to)
+    {
+        int from_offset = from * words;
+        int to_offset = to * words;
+        int offset;
+        if (WideState.isSet(states, from_offset, 1))
+        {
+            int height = -1;
+            int below = 0; // the set positions of 'shifted' below 'height'
+            for (int w = 0; w < words; w++)
+            {
+                long shifted = WideState.getShifted(states, from_offset, w,
+                                                    words);
+                long target = states[to_offset + w];
+                long diff = target ^ shifted;
+                if ((target & shifted) != shifted
+                        || (diff != 0 && (height != -1
+                                          || Long.bitCount(diff) != 1)))
+                    return -1;
+                if (diff != 0)
+                {
+                    height = 64 * w + Long.numberOfTrailingZeros(diff);
+                    below += Long.bitCount(shifted & (diff - 1));
+                }
+                else if (height == -1)
+                {
+                    below += Long.bitCount(shifted);
+                }
+            }
+            if (height == -1)
+                return -1;
+            offset = height - 1 - below;
+        }
+        else
+        {
+            for (int w = 0; w < words; w++)
+                if (states[to_offset + w] != WideState.getShifted(
+                        states, from_offset, w, words))
+                    return -1;
+            offset = 0;
+        }
+
+        int edge = edge_offsets[from] + offset;
+        if (edge >= edge_offsets[from+1] || edge_targets[edge] != to)
+            return -1;
+        return edge;
     }
 
     /**
      * Returns the child "after" <tt>current_child</tt> in the ordered
-     * <tt>Map</tt> of children of <tt>node</tt>.
+     * list of children of <tt>node</tt>.
      *
      * If <tt>current_child</tt> is 0, returns the first child.
      *
@@ -257,44 +1359,37 @@ public class StateGraph
      */
     public long getNextChild(long node, long current_child)
     {
-        TreeMap<Integer, Long> children = getChildren(node);
-        Iterator<Map.Entry<Integer, Long>> iter = children.entrySet().iterator();
+        int index = getIndex(node);
+        if (index == -1)
+            return 0;
+
         if(current_child == 0)
-            return iter.next().getValue();
-        else
-        {
-            boolean next = false;
-            while (iter.hasNext())
-            {
-                if (next)
-                    return iter.next().getValue();
-                if (iter.next().getValue() == current_child)
-                    next = true;
-            }
-            // either current_child is not a child (contrary to our assumption),
-            // or it's the last child
+            return states[edge_targets[edge_offsets[index]]];
+
+        int edge = getEdge(index, current_child);
+        // either current_child is not a child (contrary to our assumption),
+        // or it's the last child
+        if (edge == -1 || edge + 1 == edge_offsets[index+1])
             return 0;
-        }
+        return states[edge_targets[edge + 1]];
     }
 
     /**
      * Return the label of the edge in the graph that connects <tt>from</tt>
-     * to <tt>to</tt>.
-     * <tt>to</tt>
+     * to <tt>to</tt>, or -1 if there is no such edge.
      * @param from
      * @param to
      * @return
      */
     public int getLabel(long from, long to)
     {
+        int index = getIndex(from);
+        if (index == -1)
+            return -1;
 
-        TreeMap<Integer, Long> children = getChildren(from);
-        for (Map.Entry<Integer, Long> entry : children.entrySet())
-        {
-            if (entry.getValue() == to)
-                return entry.getKey();
-        }
-        return -1;
+        int edge = getEdge(index, to);
+        if (edge == -1)
+            return -1;
+        return edge_labels[edge];
     }
 }
-
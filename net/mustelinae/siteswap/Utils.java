@@ -117,83 +117,96 @@ public class Utils
      */
     public static int[] normalize(int[] a)
     {
-        int len = a.length;
-        for (int i = 1; i < len; i++) //ugly way to iterate over len's devisors
-        {
-            if (len % i == 0)
-            {
-                boolean cannot_be_cut = false;
-                for (int j = 0; j<i; j++)
-                {
-                    for(int k = 1; k < (len/i); k++)
-                    {
-                        if(a[j] != a[(j+i*k)%len])
-                        {
-                            cannot_be_cut = true;
-                            break;
-                        }
-                    }
-                    if (cannot_be_cut)
-                    {
-                        break;
-                    }
-                }
-                if (!cannot_be_cut)
-                {
-                    int[] aa = new int[i];
-                    for(int j = 0; j<i; j++)
-                        aa[j] = a[j];
-                    return order(aa);
-                }
-            }
-        }
-        return order(a);
+        int[] ret = new int[a.length];
+        int len = normalize(a, a.length, ret);
+        if (len < a.length)
+            ret = Arrays.copyOf(ret, len);
+        return ret;
     }
 
     /**
-     * Returns the lexicographically largest of <tt>a</tt>'s shifts
+     * Normalizes the first <tt>len</tt> elements of <tt>a</tt> the same way
+     * as <tt>normalize(int[])</tt>, but writes the result to <tt>out</tt>
+     * instead of allocating a new array. <tt>out</tt> must have room for
+     * <tt>len</tt> elements and must not be <tt>a</tt>.
+     *
+     * Runs in linear time: the shortest period is found with the failure
+     * function of the Knuth-Morris-Pratt algorithm (computed in
+     * <tt>out</tt>), and the largest shift with the two-pointer minimal
+     * rotation algorithm (with the comparisons reversed).
+     *
+     * @return the length of the normalized sequence
      */
-    private static int[] order(int[] a)
+    public static int normalize(int[] a, int len, int[] out)
     {
-        int best_shift = 0;
-        int len = a.length;
-        for (int i = 1; i<len; i++)
+        if (len == 0)
+            return 0;
+
+        // out[i] is the length of the longest proper prefix of a[0..i] which
+        // is also its suffix
+        out[0] = 0;
+        for (int i = 1; i < len; i++)
         {
-            if(compare_shift(a, i, best_shift) == 1)
-                best_shift = i;
+            int k = out[i-1];
+            while (k > 0 && a[i] != a[k])
+                k = out[k-1];
+            if (a[i] == a[k])
+                k++;
+            out[i] = k;
         }
+        int period = len - out[len-1];
+        if (len % period != 0)
+            period = len;
 
-        if (best_shift == 0)
-            return a;
-
-        int[] aa = new int[len];
-        for (int i = 0; i<len; i++)
-            aa[i] = a[(i+best_shift)%len];
-        return aa;
+        int best_shift = largestShift(a, period);
+        int j = 0;
+        for (int i = best_shift; i < period; i++)
+            out[j++] = a[i];
+        for (int i = 0; i < best_shift; i++)
+            out[j++] = a[i];
+        return period;
     }
 
     /**
-     * Checks if <tt>a</tt> shifted by <tt>s1</tt> is lexicographically 
-     * bigger, the same, or smaller than <tt>a</tt> sifted by <tt>s2</tt>.
-     * Returns 1, 0 or -1 respectively.
+     * Returns the shift of <tt>a[0..len-1]</tt> which is lexicographically
+     * the largest (the first one, if there are several).
      *
-     * That is returns:
-     * 1 if (a_s1) > (a_s2)
-     * 0 if (a_s1) = (a_s2)
-     *-1 if (a_s1) < (a_s2)
+     * Keeps two candidate shifts <tt>i</tt> and <tt>j</tt> and the length
+     * <tt>k</tt> of their common prefix. When they differ at <tt>k</tt>, none
+     * of the shifts from the smaller candidate up to <tt>k</tt> past it can
+     * be the largest, so it is moved past them. Every step either grows
+     * <tt>k</tt> or moves a candidate, so this takes at most <tt>3*len</tt>
+     * steps.
      */
-    private static int compare_shift(int[] a, int s1, int s2)
+    private static int largestShift(int[] a, int len)
     {
-        int len = a.length;
-        for (int i = 0; i < a.length; i++)
+        int i = 0;
+        int j = 1;
+        int k = 0;
+        while (i < len && j < len && k < len)
         {
-            if(a[(i+s1)%len] > a[(i+s2)%len])
-                return 1;
-            else if(a[(i+s1)%len] < a[(i+s2)%len])
-                return -1;
-        }
+            int ik = i + k;
+            if (ik >= len)
+                ik -= len;
+            int jk = j + k;
+            if (jk >= len)
+                jk -= len;
 
-        return 0;
+            if (a[ik] == a[jk])
+            {
+                k++;
+                continue;
+            }
+
+            if (a[ik] < a[jk])
+                i += k + 1;
+            else
+                j += k + 1;
+            if (i == j)
+                j++;
+            k = 0;
+        }
+        return Math.min(i, j);
     }
 
     /**
@@ -222,4 +235,53 @@ public class Utils
 
         return true;
     }
+
+    /**
+     * Checks whether <tt>siteswap[0]</tt> to <tt>siteswap[len-1]</tt>
+     * represent a valid vanilla siteswap pattern. Unlike
+     * <tt>isValid(int[])</tt>, allocates nothing for up to 64 throws.
+     */
+    public static boolean isValid(int[] siteswap, int len)
+    {
+        if (len == 0)
+            return false;
+        if (len > 64)
+            return isValid(Arrays.copyOf(siteswap, len));
+
+        long sum = 0;
+        long landing = 0;
+        for (int i = 0; i<len; i++)
+        {
+            sum += siteswap[i];
+            long bit = 1L << ((i+siteswap[i])%len); //where i-th throw lands
+            if ((landing & bit) != 0) //collision de las bolas
+                return false;
+            landing |= bit;
+        }
+
+        return sum % len == 0;
+    }
+
+    /**
+     * Returns a set of throw heights (from 0 to 63) as a bit mask.
+     */
+    static long mask(int... heights)
+    {
+        long mask = 0;
+        for (int h : heights)
+        {
+            if (h < 0 || h > 63)
+                throw new IllegalArgumentException("height out of range: " + h);
+            mask |= 1L << h;
+        }
+        return mask;
+    }
+
+    /**
+     * Checks whether <tt>height</tt> is in a set made by <tt>mask</tt>.
+     */
+    static boolean isIn(int height, long mask)
+    {
+        return height < 64 && (mask & (1L << height)) != 0;
+    }
 }
@@ -0,0 +1,117 @@
+package net.mustelinae.siteswap;
+
+/**
+ * Operations on juggling states which don't fit in a <tt>long</tt>, i.e.
+ * with a max height of 64 or more. Such a state is stored in a fixed number
+ * of <tt>long</tt> words at some offset of a <tt>long[]</tt> (usually one
+ * holding many states), position <tt>p</tt> being bit <tt>p % 64</tt> of
+ * word <tt>p / 64</tt>. As with <tt>long</tt> states, position 0 is never
+ * used. Nothing is allocated by the operations.
+ */
+public class WideState
+{
+    /**
+     * Returns the number of words of the states with <tt>max_height</tt>
+     * positions.
+     */
+    public static int getWords(int max_height)
+    {
+        return max_height / 64 + 1;
+    }
+
+    /**
+     * Returns the bits of word <tt>w</tt> of a state which are positions 1
+     * to <tt>max_height</tt>.
+     */
+    public static long getPositions(int w, int max_height)
+    {
+        long mask = -1L;
+        if (w == 0)
+            mask &= ~1L;
+        int last = max_height - 64 * w; // the highest bit in this word
+        if (last < 63)
+            mask &= last < 0 ? 0 : (1L << (last + 1)) - 1;
+        return mask;
+    }
+
+    public static boolean isSet(long[] state, int offset, int position)
+    {
+        return ((state[offset + (position >>> 6)] >>> position) & 1) != 0;
+    }
+
+    public static void set(long[] state, int offset, int position)
+    {
+        state[offset + (position >>> 6)] |= 1L << position;
+    }
+
+    public static void unset(long[] state, int offset, int position)
+    {
+        state[offset + (position >>> 6)] &= ~(1L << position);
+    }
+
+    /**
+     * Returns word <tt>w</tt> of the state at <tt>offset</tt> shifted one
+     * position to the left (see <tt>StateGraph.shiftLeft</tt>).
+     */
+    public static long getShifted(long[] state, int offset, int w, int words)
+    {
+        long shifted = state[offset + w] >>> 1;
+        if (w + 1 < words)
+            shifted |= state[offset + w + 1] << 63;
+        if (w == 0)
+            shifted &= ~1L;
+        return shifted;
+    }
+
+    /**
+     * Stores the state at <tt>src_offset</tt> of <tt>src</tt> shifted one
+     * position to the left at <tt>dst_offset</tt> of <tt>dst</tt>. The two
+     * may overlap only if they are the same.
+     */
+    public static void shiftLeft(long[] src, int src_offset,
+                                 long[] dst, int dst_offset, int words)
+    {
+        // going up, every word is read before it is written
+        for (int w = 0; w < words; w++)
+            dst[dst_offset + w] = getShifted(src, src_offset, w, words);
+    }
+
+    public static void copy(long[] src, int src_offset,
+                            long[] dst, int dst_offset, int words)
+    {
+        System.arraycopy(src, src_offset, dst, dst_offset, words);
+    }
+
+    public static boolean equals(long[] a, int a_offset,
+                                 long[] b, int b_offset, int words)
+    {
+        for (int w = 0; w < words; w++)
+            if (a[a_offset + w] != b[b_offset + w])
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns a hash of the state, with its bits well mixed (see
+     * <tt>LongIntMap.hash</tt>).
+     */
+    public static int hash(long[] state, int offset, int words)
+    {
+        long h = words;
+        for (int w = 0; w < words; w++)
+            h = h * 0x9e3779b97f4a7c15L + state[offset + w];
+        return LongIntMap.hash(h);
+    }
+
+    /**
+     * Returns the state as a string of 'x's and '0's, from position 1 to
+     * <tt>max_height</tt>.
+     */
+    public static String toString(long[] state, int offset, int max_height)
+    {
+        StringBuilder sb = new StringBuilder(max_height);
+        for (int i = 1; i <= max_height; i++)
+            sb.append(isSet(state, offset, i) ? 'x' : '0');
+        return sb.toString();
+    }
+}
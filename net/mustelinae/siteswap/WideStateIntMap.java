@@ -0,0 +1,108 @@
+package net.mustelinae.siteswap;
+
+/**
+ * Like <tt>LongIntMap</tt>, but the keys are states of a fixed number of
+ * words (see <tt>WideState</tt>), which are copied into a single
+ * <tt>long[]</tt>, so that no object is allocated per key.
+ */
+public class WideStateIntMap
+{
+    private final int words;
+
+    /**
+     * The keys, <tt>words</tt> entries per slot. A slot is used iff the
+     * corresponding entry in <tt>values</tt> is non-zero.
+     */
+    private long[] keys;
+
+    /**
+     * The values, offset by one so that 0 can mark an empty slot.
+     */
+    private int[] values;
+
+    private int size = 0;
+
+    public WideStateIntMap(int words)
+    {
+        this(words, 16);
+    }
+
+    public WideStateIntMap(int words, int expected_size)
+    {
+        this.words = words;
+        int capacity = 16;
+        while (capacity < expected_size * 2)
+            capacity <<= 1;
+        keys = new long[capacity * words];
+        values = new int[capacity];
+    }
+
+    /**
+     * Returns the value associated with the key at <tt>offset</tt> of
+     * <tt>key</tt>, or -1 if there is none.
+     */
+    public int get(long[] key, int offset)
+    {
+        int mask = values.length - 1;
+        for (int slot = WideState.hash(key, offset, words) & mask;
+             values[slot] != 0;
+             slot = (slot + 1) & mask)
+        {
+            if (WideState.equals(keys, slot * words, key, offset, words))
+                return values[slot] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Associates <tt>value</tt> (which must be non-negative) with the key
+     * at <tt>offset</tt> of <tt>key</tt>, replacing any previous value.
+     */
+    public void put(long[] key, int offset, int value)
+    {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value: " + value);
+        if ((size + 1) * 2 > values.length)
+            rehash(values.length * 2);
+
+        int mask = values.length - 1;
+        int slot = WideState.hash(key, offset, words) & mask;
+        while (values[slot] != 0)
+        {
+            if (WideState.equals(keys, slot * words, key, offset, words))
+            {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        WideState.copy(key, offset, keys, slot * words, words);
+        values[slot] = value + 1;
+        size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] old_keys = keys;
+        int[] old_values = values;
+        keys = new long[capacity * words];
+        values = new int[capacity];
+
+        int mask = capacity - 1;
+        for (int i = 0; i < old_values.length; i++)
+        {
+            if (old_values[i] == 0)
+                continue;
+            int slot = WideState.hash(old_keys, i * words, words) & mask;
+            while (values[slot] != 0)
+                slot = (slot + 1) & mask;
+            WideState.copy(old_keys, i * words, keys, slot * words, words);
+            values[slot] = old_values[i];
+        }
+    }
+}